@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.sqlite;
+
+import junit.framework.Assert;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.usf.cutr.opentripplanner.android.model.Server;
+
+/**
+ * Measures how the time to store the server list grows with the size of the directory, writing
+ * row by row with a read back of each row, as the refresh used to do, and with the batch write
+ * of {@link ServersDataSource#saveServers(List, List, List, long)}.
+ * <p>
+ * Runs against a scratch database, results are written to the log.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServersDataSourceBenchmark extends AndroidTestCase {
+
+    public static final String TAG = "ServersDataSourceBenchmark";
+
+    private static final int[] DIRECTORY_SIZES = {10, 100, 500, 1000};
+
+    private File databaseFile;
+
+    private SQLiteDatabase database;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        databaseFile = new File(getContext().getCacheDir(), "servers_benchmark.db");
+        databaseFile.delete();
+        database = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+        OtpSQLiteHelper.getInstance(getContext()).onCreate(database);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        databaseFile.delete();
+        super.tearDown();
+    }
+
+    public void testFullRefresh() throws Exception {
+        for (int size : DIRECTORY_SIZES) {
+            List<Server> servers = createServers(size);
+
+            clearServers();
+            long start = System.nanoTime();
+            for (Server server : servers) {
+                insertAndReadBack(server);
+            }
+            long rowByRow = System.nanoTime() - start;
+            Assert.assertEquals(size, countServers());
+
+            clearServers();
+            start = System.nanoTime();
+            int written = ServersDataSource.saveServers(database, servers,
+                    Collections.<Server>emptyList(), Collections.<Server>emptyList(), 1L);
+            long batch = System.nanoTime() - start;
+            Assert.assertEquals(size, written);
+            Assert.assertEquals(size, countServers());
+
+            Log.i(TAG, "Full refresh of " + size + " servers - row by row: "
+                    + rowByRow / 1000000 + " ms, batch: " + batch / 1000000 + " ms");
+        }
+    }
+
+    public void testIncrementalRefresh() throws Exception {
+        for (int size : DIRECTORY_SIZES) {
+            clearServers();
+            ServersDataSource.saveServers(database, createServers(size),
+                    Collections.<Server>emptyList(), Collections.<Server>emptyList(), 1L);
+
+            // A tenth of the directory changed and another tenth was removed
+            List<Server> stored = readServers();
+            List<Server> changed = new ArrayList<Server>();
+            List<Server> removed = new ArrayList<Server>();
+            for (int i = 0; i < stored.size(); i++) {
+                Server server = stored.get(i);
+                if (i % 10 == 0) {
+                    server.setContactName("Changed contact");
+                    changed.add(server);
+                } else if (i % 10 == 1) {
+                    removed.add(server);
+                }
+            }
+
+            long start = System.nanoTime();
+            int written = ServersDataSource.saveServers(database,
+                    Collections.<Server>emptyList(), changed, removed, 2L);
+            long batch = System.nanoTime() - start;
+            Assert.assertEquals(changed.size() + removed.size(), written);
+            Assert.assertEquals(size - removed.size(), countServers());
+
+            Log.i(TAG, "Incremental refresh of " + size + " servers (" + changed.size()
+                    + " changed, " + removed.size() + " removed) - batch: "
+                    + batch / 1000000 + " ms");
+        }
+    }
+
+    private List<Server> createServers(int size) {
+        List<Server> servers = new ArrayList<Server>(size);
+        for (int i = 0; i < size; i++) {
+            Server server = new Server();
+            server.setRegion("Region " + i);
+            server.setBaseURL("http://otp" + i + ".example.org/otp");
+            server.setBounds("27.6236434,-82.8511308,28.3251809,-82.0559399");
+            server.setCenter("27.9742,-82.4537");
+            server.setZoom("12");
+            server.setLanguage("en_US");
+            server.setContactName("Contact " + i);
+            server.setContactEmail("contact" + i + "@example.org");
+            server.setOffersBikeRental(i % 2 == 0);
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    private void insertAndReadBack(Server s) {
+        ContentValues values = new ContentValues();
+        values.put(OtpSQLiteHelper.COLUMN_DATE, 1L);
+        values.put(OtpSQLiteHelper.COLUMN_REGION, s.getRegion());
+        values.put(OtpSQLiteHelper.COLUMN_BASEURL, s.getBaseURL());
+        values.put(OtpSQLiteHelper.COLUMN_BOUNDS, s.getBounds());
+        values.put(OtpSQLiteHelper.COLUMN_CENTER, s.getCenter());
+        values.put(OtpSQLiteHelper.COLUMN_ZOOM, s.getZoom());
+        values.put(OtpSQLiteHelper.COLUMN_LANGUAGE, s.getLanguage());
+        values.put(OtpSQLiteHelper.COLUMN_CONTACT_NAME, s.getContactName());
+        values.put(OtpSQLiteHelper.COLUMN_CONTACT_EMAIL, s.getContactEmail());
+        values.put(OtpSQLiteHelper.COLUMN_OFFERS_BIKE_RENTAL, s.getOffersBikeRental());
+        long insertId = database.insert(OtpSQLiteHelper.TABLE_SERVERS, null, values);
+        Cursor cursor = database.query(OtpSQLiteHelper.TABLE_SERVERS, null,
+                OtpSQLiteHelper.COLUMN_ID + " = " + insertId, null, null, null, null);
+        cursor.moveToFirst();
+        cursor.close();
+    }
+
+    private List<Server> readServers() {
+        List<Server> servers = new ArrayList<Server>();
+        Cursor cursor = database.query(OtpSQLiteHelper.TABLE_SERVERS, new String[]{
+                OtpSQLiteHelper.COLUMN_ID, OtpSQLiteHelper.COLUMN_REGION}, null, null, null,
+                null, OtpSQLiteHelper.COLUMN_ID);
+        List<Server> all = createServers(cursor.getCount());
+        while (cursor.moveToNext()) {
+            Server server = all.get(cursor.getPosition());
+            server.setId(cursor.getLong(0));
+            server.setRegion(cursor.getString(1));
+            servers.add(server);
+        }
+        cursor.close();
+        return servers;
+    }
+
+    private void clearServers() {
+        database.delete(OtpSQLiteHelper.TABLE_SERVERS, null, null);
+    }
+
+    private long countServers() {
+        return DatabaseUtils.queryNumEntries(database, OtpSQLiteHelper.TABLE_SERVERS);
+    }
+}
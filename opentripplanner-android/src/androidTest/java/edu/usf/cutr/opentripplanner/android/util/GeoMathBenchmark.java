@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import junit.framework.Assert;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.Server;
+
+/**
+ * Compares {@link GeoMath} with the Location.distanceBetween based code it replaced, both in
+ * results and in time. Timings are written to the log.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class GeoMathBenchmark extends AndroidTestCase {
+
+    public static final String TAG = "GeoMathBenchmark";
+
+    private static final int POINTS = 20000;
+
+    private static final int NEAREST_CANDIDATES = 10;
+
+    private final Random random = new Random(42);
+
+    private final Server serverTampa = new Server();
+
+    private double[] latitudes = new double[POINTS];
+
+    private double[] longitudes = new double[POINTS];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        serverTampa.setBounds("27.6236434,-82.8511308,28.3251809,-82.0559399");
+        // Points around the Tampa bounds, some of them outside
+        for (int i = 0; i < POINTS; i++) {
+            latitudes[i] = 27.5 + random.nextDouble() * 1;
+            longitudes[i] = -83 + random.nextDouble() * 1.1;
+        }
+    }
+
+    public void testBoundingBox() {
+        boolean[] legacyResults = new boolean[POINTS];
+        long start = System.nanoTime();
+        for (int i = 0; i < POINTS; i++) {
+            legacyResults[i] = legacyCheckPointInBoundingBox(new LatLng(latitudes[i],
+                    longitudes[i]), serverTampa, OTPApp.CHECK_BOUNDS_ACCEPTABLE_ERROR);
+        }
+        long legacy = System.nanoTime() - start;
+
+        int disagreements = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < POINTS; i++) {
+            if (LocationUtil.checkPointInBoundingBox(latitudes[i], longitudes[i], serverTampa,
+                    OTPApp.CHECK_BOUNDS_ACCEPTABLE_ERROR) != legacyResults[i]) {
+                disagreements++;
+            }
+        }
+        long kernel = System.nanoTime() - start;
+
+        Log.i(TAG, "Bounding box check of " + POINTS + " points - distanceBetween: "
+                + legacy / 1000000 + " ms, GeoMath: " + kernel / 1000000 + " ms, "
+                + disagreements + " different results");
+        // Results can only differ for points a few meters from the edges
+        Assert.assertTrue(disagreements < POINTS / 1000);
+    }
+
+    public void testDistance() {
+        float[] results = new float[1];
+        double[] legacyDistances = new double[POINTS - 1];
+        long start = System.nanoTime();
+        for (int i = 0; i < POINTS - 1; i++) {
+            Location.distanceBetween(latitudes[i], longitudes[i], latitudes[i + 1],
+                    longitudes[i + 1], results);
+            legacyDistances[i] = results[0];
+        }
+        long legacy = System.nanoTime() - start;
+
+        double maxHaversineError = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < POINTS - 1; i++) {
+            double distance = GeoMath.haversineDistance(latitudes[i], longitudes[i],
+                    latitudes[i + 1], longitudes[i + 1]);
+            maxHaversineError = Math.max(maxHaversineError,
+                    Math.abs(distance - legacyDistances[i]) / legacyDistances[i]);
+        }
+        long haversine = System.nanoTime() - start;
+
+        double maxEquirectangularError = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < POINTS - 1; i++) {
+            double distance = GeoMath.equirectangularDistance(latitudes[i], longitudes[i],
+                    latitudes[i + 1], longitudes[i + 1]);
+            maxEquirectangularError = Math.max(maxEquirectangularError,
+                    Math.abs(distance - legacyDistances[i]) / legacyDistances[i]);
+        }
+        long equirectangular = System.nanoTime() - start;
+
+        Log.i(TAG, "Distance between " + (POINTS - 1) + " pairs - distanceBetween: "
+                + legacy / 1000000 + " ms, haversine: " + haversine / 1000000
+                + " ms (max error " + maxHaversineError + "), equirectangular: "
+                + equirectangular / 1000000 + " ms (max error " + maxEquirectangularError + ")");
+        Assert.assertTrue(maxHaversineError < 0.005);
+        Assert.assertTrue(maxEquirectangularError < 0.01);
+    }
+
+    public void testNearest() {
+        int rounds = POINTS / NEAREST_CANDIDATES;
+        int[] legacyNearest = new int[rounds];
+        float[] results = new float[1];
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            int offset = round * NEAREST_CANDIDATES;
+            float minDistance = Float.MAX_VALUE;
+            for (int i = 0; i < NEAREST_CANDIDATES; i++) {
+                Location.distanceBetween(28, -82.5, latitudes[offset + i],
+                        longitudes[offset + i], results);
+                if (results[0] < minDistance) {
+                    minDistance = results[0];
+                    legacyNearest[round] = i;
+                }
+            }
+        }
+        long legacy = System.nanoTime() - start;
+
+        double[] candidateLatitudes = new double[NEAREST_CANDIDATES];
+        double[] candidateLongitudes = new double[NEAREST_CANDIDATES];
+        int disagreements = 0;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            int offset = round * NEAREST_CANDIDATES;
+            System.arraycopy(latitudes, offset, candidateLatitudes, 0, NEAREST_CANDIDATES);
+            System.arraycopy(longitudes, offset, candidateLongitudes, 0, NEAREST_CANDIDATES);
+            if (GeoMath.nearest(28, -82.5, candidateLatitudes, candidateLongitudes,
+                    NEAREST_CANDIDATES) != legacyNearest[round]) {
+                disagreements++;
+            }
+        }
+        long kernel = System.nanoTime() - start;
+
+        Log.i(TAG, "Nearest of " + NEAREST_CANDIDATES + " points, " + rounds
+                + " times - distanceBetween: " + legacy / 1000000 + " ms, GeoMath: "
+                + kernel / 1000000 + " ms, " + disagreements + " different results");
+        // Only near ties can be decided differently by the spherical approximation
+        Assert.assertTrue(disagreements < rounds / 100);
+    }
+
+    /**
+     * LocationUtil.checkPointInBoundingBox() before it used GeoMath.
+     */
+    private static boolean legacyCheckPointInBoundingBox(LatLng location, Server selectedServer,
+            int acceptableError) {
+        float[] resultLeft = new float[3];
+        float[] resultRight = new float[3];
+        float[] resultUp = new float[3];
+        float[] resultDown = new float[3];
+        float[] resultHorizontal = new float[3];
+        float[] resultVertical = new float[3];
+
+        double locationLat = location.latitude;
+        double locationLon = location.longitude;
+
+        double leftLon = selectedServer.getLowerLeftLongitude();
+        double rightLon = selectedServer.getUpperRightLongitude();
+
+        Location.distanceBetween(locationLat, locationLon, locationLat, leftLon, resultLeft);
+        Location.distanceBetween(locationLat, locationLon, locationLat, rightLon, resultRight);
+
+        double upLat = selectedServer.getUpperRightLatitude();
+        double downLat = selectedServer.getLowerLeftLatitude();
+
+        Location.distanceBetween(locationLat, locationLon, upLat, locationLon, resultUp);
+        Location.distanceBetween(locationLat, locationLon, downLat, locationLon, resultDown);
+
+        Location.distanceBetween(locationLat, leftLon, locationLat, rightLon, resultHorizontal);
+        Location.distanceBetween(upLat, locationLon, downLat, locationLon, resultVertical);
+
+        return resultLeft[0] + resultRight[0] - resultHorizontal[0] <= acceptableError
+                && resultUp[0] + resultDown[0] - resultVertical[0] <= acceptableError;
+    }
+}
@@ -47,7 +47,7 @@ import edu.usf.cutr.opentripplanner.android.listeners.DateCompleteListener;
 import edu.usf.cutr.opentripplanner.android.listeners.OtpFragment;
 import edu.usf.cutr.opentripplanner.android.model.OTPBundle;
 import edu.usf.cutr.opentripplanner.android.model.Server;
-import edu.usf.cutr.opentripplanner.android.sqlite.ServersDataSource;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerDirectory;
 import edu.usf.cutr.opentripplanner.android.tasks.ServerChecker;
 
 /**
@@ -143,14 +143,17 @@ public class MyActivity extends FragmentActivity implements OtpFragment {
                                     this);
                         }
                         else{
-                            ServersDataSource dataSource = ServersDataSource.getInstance(this);
-                            dataSource.open();
-                            server = new Server(dataSource
-                                    .getServer(prefs.getLong(OTPApp.PREFERENCE_KEY_SELECTED_SERVER, 0)));
-                            dataSource.close();
+                            Server storedServer = ServerDirectory.getInstance(this)
+                                    .getServer(prefs.getLong(OTPApp.PREFERENCE_KEY_SELECTED_SERVER, 0));
+                            server = storedServer == null ? null : new Server(storedServer);
                         }
                         mainFragment.setmCustomServerMetadata(null);
-                        serverChecker.execute(server);
+                        if (server != null){
+                            serverChecker.execute(server);
+                        }
+                        else{
+                            mainFragment.resetSelectedServer();
+                        }
                     }
                     if (changedTileProvider) {
                         mainFragment.updateOverlay(null);
@@ -244,7 +247,7 @@ public class MyActivity extends FragmentActivity implements OtpFragment {
         currentItinerary.clear();
         currentItinerary.addAll(currentItineraryList.get(i).legs);
 
-        mainFragment.showRouteOnMap(currentItinerary, animateCamera);
+        mainFragment.showRouteOnMap(currentItinerary, i, animateCamera);
     }
 
     @Override
@@ -118,6 +118,37 @@ public class OTPApp extends Application {
 
     public static final int HTTP_SOCKET_TIMEOUT = 15000;
 
+    // Time that the platform keeps idle connections in its pool
+    public static final long HTTP_KEEP_ALIVE_DURATION = TimeUnit.MINUTES.toMillis(5);
+
+    public static final long PLAN_CACHE_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(10);
+
+    // Max age of a cached plan departing now, for a later request also departing now
+    public static final long PLAN_CACHE_NOW_WINDOW = TimeUnit.MINUTES.toMillis(2);
+
+    public static final int PLAN_CACHE_MAX_MEMORY_ENTRIES = 10;
+
+    // in bytes
+    public static final long PLAN_CACHE_MAX_DISK_SIZE = 2 * 1024 * 1024;
+
+    // Itineraries of the current plan kept on the map, hidden, to switch between them
+    public static final int ROUTE_OVERLAYS_CACHE_SIZE = 5;
+
+    // Markers kept hidden on the map to be reused
+    public static final int MARKER_POOL_MAX_SIZE = 200;
+
+    // Side of the cells grouping the bike rental stations, in dp, must be a power of 2
+    public static final int BIKE_RENTAL_CLUSTER_CELL_SIZE = 64;
+
+    // Last zoom level where bike rental stations are grouped, above it all are shown
+    public static final int BIKE_RENTAL_CLUSTER_MAX_ZOOM = 16;
+
+    // Fraction of the visible region of the map added on each side to show its markers
+    public static final float MAP_VIEWPORT_MARGIN = 0.5f;
+
+    // Time without camera changes after which the map is considered idle, in milliseconds
+    public static final long MAP_CAMERA_IDLE_DELAY = 300;
+
     public static final String BUNDLE_KEY_MAP_FAILED = "Map failed";
 
     public static final String BUNDLE_KEY_MAP_CAMERA = "Map Camera";
@@ -204,12 +235,19 @@ public class OTPApp extends Application {
 
     public static final String PREFERENCE_KEY_REFRESH_SERVER_LIST = "refresh_server_list";
 
+    public static final String PREFERENCE_KEY_SERVER_LIST_ETAG = "server_list_etag";
+
+    public static final String PREFERENCE_KEY_SERVER_LIST_LAST_MODIFIED
+            = "server_list_last_modified";
+
     public static final String PREFERENCE_KEY_OTP_PROVIDER_FEEDBACK = "otp_provider_feedback";
 
     public static final String PREFERENCE_KEY_MAX_WALKING_DISTANCE = "max_walking_distance";
 
     public static final String PREFERENCE_KEY_WHEEL_ACCESSIBLE = "wheelchair_accessible";
 
+    public static final String PREFERENCE_KEY_SPECULATIVE_PLANNING = "speculative_planning";
+
     public static final String PREFERENCE_KEY_SELECTED_SERVER = "selected_server";
 
     public static final String PREFERENCE_KEY_SELECTED_CUSTOM_SERVER = "selected_custom_server";
@@ -254,6 +292,21 @@ public class OTPApp extends Application {
 
     public static final int EXPIRATION_DAYS_FOR_SERVER_LIST = 3;
 
+    public static final int EXPIRATION_DAYS_FOR_SERVER_CAPABILITIES = 7;
+
+    // Time the health of a server is valid, candidates are probed again in background after that
+    public static final long SERVER_HEALTH_PROBE_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+
+    // Max time that server auto-detection waits for the servers to be probed
+    public static final long SERVER_HEALTH_PROBE_DEADLINE = TimeUnit.SECONDS.toMillis(5);
+
+    public static final double SERVER_HEALTH_SMOOTHING_FACTOR = 0.3;
+
+    public static final double SERVER_HEALTH_MIN_SUCCESS_RATE = 0.5;
+
+    // Healthy servers up to this times the area of the smallest one are chosen by latency
+    public static final double SERVER_HEALTH_MAX_AREA_RATIO = 4;
+
     public static final float defaultInitialZoomLevel = 12;
 
     public static final float defaultMediumZoomLevel = 14;
@@ -278,6 +331,10 @@ public class OTPApp extends Application {
 
     public static final long DEFAULT_UPDATE_INTERVAL_TRIP_TIME = TimeUnit.SECONDS.toMillis(60);
 
+    public static final int TRIP_TIMES_UPDATES_MAX_CONCURRENT_REQUESTS = 4;
+
+    public static final long TRIP_TIMES_UPDATES_DEADLINE = TimeUnit.SECONDS.toMillis(20);
+
     public static final String INTENT_UPDATE_BIKE_RENTAL_ACTION
             = "edu.usf.cutr.opentripplanner.android.OpenTripPlanner.UPDATE_BIKE_RENTAL";
 
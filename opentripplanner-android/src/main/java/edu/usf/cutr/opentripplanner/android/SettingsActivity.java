@@ -42,7 +42,7 @@ import java.util.Date;
 
 import edu.usf.cutr.opentripplanner.android.listeners.ServerCheckerCompleteListener;
 import edu.usf.cutr.opentripplanner.android.model.Server;
-import edu.usf.cutr.opentripplanner.android.sqlite.ServersDataSource;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerDirectory;
 import edu.usf.cutr.opentripplanner.android.tasks.ServerChecker;
 import edu.usf.cutr.opentripplanner.android.util.ConversionUtils;
 
@@ -417,9 +417,7 @@ public class SettingsActivity extends PreferenceActivity implements ServerChecke
                     }
                 });
 
-        ServersDataSource datasource = ServersDataSource.getInstance(this);
-        datasource.open();
-        Long mostRecentDate = datasource.getMostRecentDate();
+        Long mostRecentDate = ServerDirectory.getInstance(this).getDate();
 
         serverRefreshButton = (Preference) findPreference(
                 OTPApp.PREFERENCE_KEY_REFRESH_SERVER_LIST);
@@ -450,8 +448,6 @@ public class SettingsActivity extends PreferenceActivity implements ServerChecke
                         return true;
                     }
                 });
-
-        datasource.close();
     }
 
 
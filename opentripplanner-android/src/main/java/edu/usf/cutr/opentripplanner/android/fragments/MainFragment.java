@@ -35,17 +35,16 @@ import android.content.IntentSender;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Point;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract;
 import android.provider.Settings;
@@ -136,6 +135,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -152,27 +152,40 @@ import edu.usf.cutr.opentripplanner.android.listeners.MetadataRequestCompleteLis
 import edu.usf.cutr.opentripplanner.android.listeners.OTPGeocodingListener;
 import edu.usf.cutr.opentripplanner.android.listeners.OtpFragment;
 import edu.usf.cutr.opentripplanner.android.listeners.RequestTimesForTripsCompleteListener;
+import edu.usf.cutr.opentripplanner.android.listeners.RouteRenderPreparationCompleteListener;
 import edu.usf.cutr.opentripplanner.android.listeners.ServerCheckerCompleteListener;
 import edu.usf.cutr.opentripplanner.android.listeners.ServerSelectorCompleteListener;
 import edu.usf.cutr.opentripplanner.android.listeners.TripRequestCompleteListener;
+import edu.usf.cutr.opentripplanner.android.maps.BikeRentalStationsOverlay;
 import edu.usf.cutr.opentripplanner.android.maps.CustomUrlTileProvider;
+import edu.usf.cutr.opentripplanner.android.maps.MarkerIconCache;
+import edu.usf.cutr.opentripplanner.android.maps.MarkerPool;
+import edu.usf.cutr.opentripplanner.android.maps.RouteOverlay;
 import edu.usf.cutr.opentripplanner.android.model.OTPBundle;
 import edu.usf.cutr.opentripplanner.android.model.OptimizeSpinnerItem;
+import edu.usf.cutr.opentripplanner.android.model.RouteRenderBundle;
 import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerDirectory;
 import edu.usf.cutr.opentripplanner.android.sqlite.ServersDataSource;
 import edu.usf.cutr.opentripplanner.android.tasks.BikeRentalLoad;
 import edu.usf.cutr.opentripplanner.android.tasks.MetadataRequest;
 import edu.usf.cutr.opentripplanner.android.tasks.OTPGeocoding;
+import edu.usf.cutr.opentripplanner.android.tasks.PlanPrefetcher;
 import edu.usf.cutr.opentripplanner.android.tasks.RequestTimesForTrips;
+import edu.usf.cutr.opentripplanner.android.tasks.RouteRenderPreparation;
 import edu.usf.cutr.opentripplanner.android.tasks.ServerChecker;
+import edu.usf.cutr.opentripplanner.android.tasks.ServerHealthProber;
 import edu.usf.cutr.opentripplanner.android.tasks.ServerSelector;
 import edu.usf.cutr.opentripplanner.android.tasks.TripRequest;
+import edu.usf.cutr.opentripplanner.android.util.BikeRentalClusters;
 import edu.usf.cutr.opentripplanner.android.util.BikeRentalStationInfo;
 import edu.usf.cutr.opentripplanner.android.util.ConversionUtils;
 import edu.usf.cutr.opentripplanner.android.util.CustomInfoWindowAdapter;
 import edu.usf.cutr.opentripplanner.android.util.DateTimeDialog;
 import edu.usf.cutr.opentripplanner.android.util.DirectionsGenerator;
 import edu.usf.cutr.opentripplanner.android.util.LocationUtil;
+import edu.usf.cutr.opentripplanner.android.util.ParallelTasks;
+import edu.usf.cutr.opentripplanner.android.util.PolylineLevelsOfDetail;
 import edu.usf.cutr.opentripplanner.android.util.RangeSeekBar;
 import edu.usf.cutr.opentripplanner.android.util.RangeSeekBar.OnRangeSeekBarChangeListener;
 import edu.usf.cutr.opentripplanner.android.util.RightDrawableOnTouchListener;
@@ -193,7 +206,7 @@ public class MainFragment extends Fragment implements
         DateCompleteListener, OnRangeSeekBarChangeListener<Double>, ServerCheckerCompleteListener,
         GooglePlayServicesClient.OnConnectionFailedListener,
         GooglePlayServicesClient.ConnectionCallbacks,
-        GoogleMap.OnCameraChangeListener {
+        GoogleMap.OnCameraChangeListener, RouteRenderPreparationCompleteListener {
 
     private static LocationManager sLocationManager;
 
@@ -302,9 +315,50 @@ public class MainFragment extends Fragment implements
 
     private Map<Marker, TripInfo> mModeMarkers;
 
-    private List<Polyline> mRoute;
+    // Mode and bike rental station markers not in use, and the icons of all of them
+    private final MarkerPool mMarkerPool = new MarkerPool(OTPApp.MARKER_POOL_MAX_SIZE);
 
-    private Map<Marker, BikeRentalStationInfo> mBikeRentalStations;
+    private MarkerIconCache mMarkerIconCache;
+
+    // Itinerary shown, its mode markers are mModeMarkers
+    private RouteOverlay mRouteOverlay;
+
+    // Itineraries of the current plan already on the map, by index, least recently shown first
+    private final Map<Integer, RouteOverlay> mRouteOverlays
+            = new LinkedHashMap<Integer, RouteOverlay>(OTPApp.ROUTE_OVERLAYS_CACHE_SIZE, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RouteOverlay> eldest) {
+            if (size() > OTPApp.ROUTE_OVERLAYS_CACHE_SIZE) {
+                if (eldest.getValue() != mRouteOverlay) {
+                    eldest.getValue().remove();
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Route waiting to be shown, superseded when another one is requested
+    private RouteRenderPreparation mRouteRenderPreparation;
+
+    // Index of the itinerary being prepared, -1 if it is not from the current plan
+    private int mRouteRenderPreparationIndex;
+
+    // Last trip request started, superseded when a new one starts or the server changes
+    private TripRequest mTripRequest;
+
+    private BikeRentalStationsOverlay mBikeRentalStations;
+
+    // Delays the markers updates on camera changes until the camera stops
+    private final Handler mCameraIdleHandler = new Handler();
+
+    private final Runnable mCameraIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onCameraIdle();
+        }
+    };
 
     private int mOptimizationValueToRestoreWhenNoBike;
 
@@ -560,6 +614,8 @@ public class MainFragment extends Fragment implements
         mPrefs = PreferenceManager.getDefaultSharedPreferences(
                 mApplicationContext);
 
+        mMarkerIconCache = new MarkerIconCache(mApplicationContext.getResources());
+
         sLocationManager = (LocationManager) getActivity()
                 .getSystemService(Context.LOCATION_SERVICE);
 
@@ -790,8 +846,14 @@ public class MainFragment extends Fragment implements
 
             @Override
             public void onInfoWindowClick(Marker marker) {
-                if (mBikeRentalStations != null && mBikeRentalStations.containsKey(marker)){
-                    BikeRentalStationInfo bikeRentalStationInfo = mBikeRentalStations.get(marker);
+                if (mBikeRentalStations != null && mBikeRentalStations.isGroup(marker)) {
+                    mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(marker.getPosition(),
+                            mMap.getCameraPosition().zoom + 2));
+                    return;
+                }
+                BikeRentalStationInfo bikeRentalStationInfo = mBikeRentalStations == null ? null
+                        : mBikeRentalStations.getStationInfo(marker);
+                if (bikeRentalStationInfo != null){
                     setMarker(true, bikeRentalStationInfo.getLocation(), false, false);
                     setTextBoxLocation(bikeRentalStationInfo.getName(), true);
                 }
@@ -1389,6 +1451,7 @@ public class MainFragment extends Fragment implements
                     Log.e(OTPApp.TAG, "Not possible to change optimization mode because selected"
                             + "optimization is unknown");
                 }
+                speculatePlan();
             }
         });
 
@@ -1509,6 +1572,7 @@ public class MainFragment extends Fragment implements
         String modesString = modeSet.toString();
         editor.putString(OTPApp.PREFERENCE_KEY_LAST_TRAVERSE_MODE_SET, modesString);
         editor.commit();
+        speculatePlan();
     }
 
     /**
@@ -1516,8 +1580,17 @@ public class MainFragment extends Fragment implements
      * necessary.
      */
     public void processRequestTrip() {
+        processRequestTrip(false);
+    }
+
+    /**
+     * Requests a trip if both locations are already geocoded.
+     *
+     * @param refresh true to skip the plan cache and always ask the server
+     */
+    public void processRequestTrip(boolean refresh) {
         if (mIsStartLocationGeocodingCompleted && mIsEndLocationGeocodingCompleted){
-            requestTrip();
+            requestTrip(refresh);
         }
     }
 
@@ -1695,7 +1768,9 @@ public class MainFragment extends Fragment implements
         }
     }
 
-    private void requestTrip() {
+    private void requestTrip(boolean refresh) {
+        supersedeTripRequest();
+
         LatLng mCurrentLatLng = getLastLocation();
         String startLocationString;
         String endLocationString;
@@ -1707,18 +1782,7 @@ public class MainFragment extends Fragment implements
 
         toggleItinerarySelectionSpinner(false);
 
-        if (mRoute != null) {
-            for (Polyline p : mRoute) {
-                p.remove();
-            }
-            mRoute = null;
-        }
-        if (mModeMarkers != null) {
-            for (Map.Entry<Marker, TripInfo> entry : mModeMarkers.entrySet()) {
-                entry.getKey().remove();
-            }
-            mModeMarkers = null;
-        }
+        removeRouteOverlays();
 
         if (isOriginMyLocation && isDestinationMyLocation) {
             Toast.makeText(MainFragment.this.mApplicationContext, mApplicationContext.getResources()
@@ -1793,6 +1857,45 @@ public class MainFragment extends Fragment implements
             return;
         }
 
+        Request request = buildRequest(startLocationString, endLocationString);
+
+        WeakReference<Activity> weakContext = new WeakReference<Activity>(
+                MainFragment.this.getActivity());
+
+        mTripRequest = new TripRequest(weakContext, MainFragment.this.mApplicationContext,
+                getResources(), mOTPApp.getSelectedServer(), MainFragment.this, refresh,
+                mTripDate == null);
+        // In parallel, so an identical plan in flight can be shared instead of queued behind it
+        ParallelTasks.execute(mTripRequest, request);
+
+        InputMethodManager imm = (InputMethodManager) MainFragment.this.getActivity()
+                .getSystemService(Context.INPUT_METHOD_SERVICE);
+        imm.hideSoftInputFromWindow(mTbEndLocation.getWindowToken(), 0);
+        imm.hideSoftInputFromWindow(mTbStartLocation.getWindowToken(), 0);
+
+        mTripDate = null;
+    }
+
+    /**
+     * Aborts the last trip request if it is still running, its result is no longer wanted.
+     */
+    private void supersedeTripRequest() {
+        if (mTripRequest != null) {
+            if (mTripRequest.getStatus() != AsyncTask.Status.FINISHED) {
+                mTripRequest.supersede();
+            }
+            mTripRequest = null;
+        }
+    }
+
+    /**
+     * Builds a trip request between the two locations using the current trip options.
+     *
+     * @param startLocationString origin as "latitude,longitude"
+     * @param endLocationString   destination as "latitude,longitude"
+     * @return the request ready to be sent
+     */
+    private Request buildRequest(String startLocationString, String endLocationString) {
         Request request = new Request();
 
         try {
@@ -1863,19 +1966,49 @@ public class MainFragment extends Fragment implements
 
         request.setShowIntermediateStops(Boolean.TRUE);
 
-        WeakReference<Activity> weakContext = new WeakReference<Activity>(
-                MainFragment.this.getActivity());
+        return request;
+    }
 
-        new TripRequest(weakContext, MainFragment.this.mApplicationContext, getResources(), mOTPApp
-                .getSelectedServer(), MainFragment.this)
-                .execute(request);
+    /**
+     * Starts planning the trip in the background, if speculative planning is enabled, while the
+     * trip options drawer is open. Closing the drawer after changing options requests the trip,
+     * which then finds the plan already downloaded or in flight.
+     */
+    private void speculatePlan() {
+        if (!mPrefs.getBoolean(OTPApp.PREFERENCE_KEY_SPECULATIVE_PLANNING, false)
+                || mDrawerLayout == null || !mDrawerLayout.isDrawerOpen(Gravity.LEFT)
+                || !mIsStartLocationGeocodingCompleted || !mIsEndLocationGeocodingCompleted) {
+            return;
+        }
 
-        InputMethodManager imm = (InputMethodManager) MainFragment.this.getActivity()
-                .getSystemService(Context.INPUT_METHOD_SERVICE);
-        imm.hideSoftInputFromWindow(mTbEndLocation.getWindowToken(), 0);
-        imm.hideSoftInputFromWindow(mTbStartLocation.getWindowToken(), 0);
+        String startLocationString = getTripEndpointString(true);
+        String endLocationString = getTripEndpointString(false);
+        if (startLocationString == null || endLocationString == null
+                || startLocationString.equals(endLocationString)) {
+            return;
+        }
 
-        mTripDate = null;
+        PlanPrefetcher.start(mApplicationContext, mOTPApp.getSelectedServer(),
+                buildRequest(startLocationString, endLocationString), mTripDate == null);
+    }
+
+    /**
+     * @param isStart true for the origin, false for the destination
+     * @return the location that would be used for the trip, as "latitude,longitude", or null
+     * if it is not available
+     */
+    private String getTripEndpointString(boolean isStart) {
+        boolean isMyLocation = mPrefs.getBoolean(isStart
+                ? OTPApp.PREFERENCE_KEY_ORIGIN_IS_MY_LOCATION
+                : OTPApp.PREFERENCE_KEY_DESTINATION_IS_MY_LOCATION, false);
+        LatLng latLng;
+        if (isMyLocation) {
+            latLng = getLastLocation();
+        } else {
+            Marker marker = isStart ? mStartMarker : mEndMarker;
+            latLng = marker != null ? marker.getPosition() : null;
+        }
+        return latLng != null ? latLng.latitude + "," + latLng.longitude : null;
     }
 
     /**
@@ -2131,6 +2264,7 @@ public class MainFragment extends Fragment implements
      * @param restartUI if true UI will be restarted to adapt to new server
      */
     private void setSelectedServer(Server s, boolean restartUI) {
+        supersedeTripRequest();
         if (restartUI) {
             restartMap();
             restartTextBoxes();
@@ -2150,21 +2284,8 @@ public class MainFragment extends Fragment implements
         if (mEndMarker != null) {
             mEndMarker.remove();
         }
-        if (mModeMarkers != null) {
-            for (Map.Entry<Marker, TripInfo> entry : mModeMarkers.entrySet()) {
-                entry.getKey().remove();
-            }
-        }
-        if (mBikeRentalStations != null) {
-            for (Map.Entry<Marker, BikeRentalStationInfo> entry : mBikeRentalStations.entrySet()) {
-                entry.getKey().remove();
-            }
-        }
-        if (mRoute != null) {
-            for (Polyline p : mRoute) {
-                p.remove();
-            }
-        }
+        removeRouteOverlays();
+        removeBikeStations();
         if (mBoundariesPolyline != null) {
             mBoundariesPolyline.remove();
         }
@@ -2173,9 +2294,6 @@ public class MainFragment extends Fragment implements
         mStartMarkerPosition = null;
         mEndMarker = null;
         mEndMarkerPosition = null;
-        mRoute = null;
-        mModeMarkers = null;
-        mBikeRentalStations = null;
         mBoundariesPolyline = null;
 
         toggleItinerarySelectionSpinner(false);
@@ -2408,6 +2526,8 @@ public class MainFragment extends Fragment implements
     public void onStart() {
         super.onStart();
 
+        ServerHealthProber.resumeSchedule();
+
         mLocationClient = new LocationClient(mApplicationContext, this, this);
 
         if (mMapFailed) {
@@ -2558,12 +2678,14 @@ public class MainFragment extends Fragment implements
             if (mCurrentLatLng != null) {
                 if (isStartTextBox){
                     mIsStartLocationGeocodingCompleted = false;
-                    mGeoCodingTask.execute(address, String.valueOf(mCurrentLatLng.latitude),
+                    ParallelTasks.execute(mGeoCodingTask, address,
+                            String.valueOf(mCurrentLatLng.latitude),
                             String.valueOf(mCurrentLatLng.longitude));
                 }
                 else{
                     mIsEndLocationGeocodingCompleted = false;
-                    mGeoCodingTask.execute(address, String.valueOf(mCurrentLatLng.latitude),
+                    ParallelTasks.execute(mGeoCodingTask, address,
+                            String.valueOf(mCurrentLatLng.latitude),
                             String.valueOf(mCurrentLatLng.longitude));
                 }
             } else {
@@ -2584,11 +2706,11 @@ public class MainFragment extends Fragment implements
             }
             if (isStartTextBox){
                 mIsStartLocationGeocodingCompleted = false;
-                mGeoCodingTask.execute(address, latString, lonString);
+                ParallelTasks.execute(mGeoCodingTask, address, latString, lonString);
             }
             else{
                 mIsEndLocationGeocodingCompleted = false;
-                mGeoCodingTask.execute(address, latString, lonString);
+                ParallelTasks.execute(mGeoCodingTask, address, latString, lonString);
             }
         }
     }
@@ -2614,6 +2736,9 @@ public class MainFragment extends Fragment implements
     public void onStop() {
         disconnectLocationClient();
 
+        // Servers are not probed while the app is in background
+        ServerHealthProber.pauseSchedule();
+
         super.onStop();
     }
 
@@ -2622,6 +2747,9 @@ public class MainFragment extends Fragment implements
         // Release all map-related objects to make sure GPS is shut down when
         // the user leaves the app
 
+        cancelRouteRenderPreparation();
+        mCameraIdleHandler.removeCallbacks(mCameraIdleRunnable);
+
         Log.d(OTPApp.TAG, "Released all map objects in MainFragment.onDestroy()");
 
         super.onDestroy();
@@ -2653,7 +2781,8 @@ public class MainFragment extends Fragment implements
                 if (mCustomServerMetadata == null){
                     MetadataRequest metaRequest = new MetadataRequest(weakContext, mApplicationContext,
                             this);
-                    metaRequest.execute(mPrefs.getString(OTPApp.PREFERENCE_KEY_CUSTOM_SERVER_URL, ""));
+                    ParallelTasks.execute(metaRequest,
+                            mPrefs.getString(OTPApp.PREFERENCE_KEY_CUSTOM_SERVER_URL, ""));
                 }
                 else{
                     onMetadataRequestComplete(mCustomServerMetadata, false);
@@ -2663,11 +2792,13 @@ public class MainFragment extends Fragment implements
                         .getString(OTPApp.PREFERENCE_KEY_CUSTOM_SERVER_URL, ""));
             } else if ((serverId = mPrefs.getLong(OTPApp.PREFERENCE_KEY_SELECTED_SERVER, 0)) != 0){
                 mCustomServerMetadata = null;
-                ServersDataSource dataSource = ServersDataSource.getInstance(mApplicationContext);
-                dataSource.open();
-                server = new Server(dataSource
-                        .getServer(mPrefs.getLong(OTPApp.PREFERENCE_KEY_SELECTED_SERVER, 0)));
-                dataSource.close();
+                Server storedServer = ServerDirectory.getInstance(mApplicationContext)
+                        .getServer(serverId);
+                if (storedServer == null) {
+                    resetSelectedServer();
+                    return;
+                }
+                server = new Server(storedServer);
 
                 setSelectedServer(server, updateUI);
                 addBoundariesRectangle(server);
@@ -2718,6 +2849,24 @@ public class MainFragment extends Fragment implements
         }
     }
 
+    /**
+     * Forgets the selected server, when it is no longer in the server directory, and detects
+     * a new one.
+     */
+    public void resetSelectedServer() {
+        Log.w(OTPApp.TAG, "Selected server no longer in the server list, detecting a new one");
+        SharedPreferences.Editor prefsEditor = mPrefs.edit();
+        prefsEditor.remove(OTPApp.PREFERENCE_KEY_SELECTED_SERVER);
+        prefsEditor.commit();
+
+        LatLng lastLocation = getLastLocation();
+        if (lastLocation != null) {
+            runAutoDetectServer(lastLocation, true);
+        } else {
+            runAutoDetectServerNoLocation(true);
+        }
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu pMenu, MenuInflater inflater) {
         super.onCreateOptionsMenu(pMenu, inflater);
@@ -2744,6 +2893,9 @@ public class MainFragment extends Fragment implements
                         Settings.ACTION_LOCATION_SOURCE_SETTINGS);
                 startActivity(myIntent);
                 break;
+            case R.id.refresh_trip:
+                processRequestTrip(true);
+                break;
             case R.id.settings:
                 getActivity().startActivityForResult(
                         new Intent(getActivity(), SettingsActivity.class),
@@ -3011,170 +3163,162 @@ public class MainFragment extends Fragment implements
      *                                                  any, otherwise to route.
      */
     public void showRouteOnMap(List<Leg> itinerary, int animateCamera) {
+        showRouteOnMap(itinerary, -1, animateCamera);
+    }
+
+    /**
+     * Draws the selected trip on the map, like {@link #showRouteOnMap(List, int)}.
+     * <p>
+     * Itineraries of the current plan are kept on the map, hidden, when another one is shown,
+     * so showing them again only has to make them visible.
+     *
+     * @param itinerary      the information to be drawn
+     * @param itineraryIndex index of the itinerary in the current plan, or -1 if it is not part
+     *                       of it
+     * @param animateCamera  type of camera animation, see {@link #showRouteOnMap(List, int)}
+     */
+    public void showRouteOnMap(List<Leg> itinerary, int itineraryIndex, int animateCamera) {
         Log.d(OTPApp.TAG,
                 "(TripRequest) legs size = "
                         + Integer.toString(itinerary.size()));
-        if (mRoute != null) {
-            for (Polyline legLine : mRoute) {
-                legLine.remove();
-            }
-            mRoute.clear();
-        }
-        if (mModeMarkers != null) {
-            for (Map.Entry<Marker, TripInfo> entry : mModeMarkers.entrySet()) {
-                entry.getKey().remove();
-            }
-        }
-        mRoute = new ArrayList<Polyline>();
-        mModeMarkers = new HashMap<Marker, TripInfo>();
-        Marker firstTransitMarker = null;
-
-        if (!itinerary.isEmpty() && !mMapFailed) {
-            LatLngBounds.Builder boundsCreator = LatLngBounds.builder();
+        cancelRouteRenderPreparation();
 
-            int stepIndex = 0;
-
-            for (Leg leg : itinerary) {
-                stepIndex++;
-
-                List<LatLng> points = LocationUtil.decodePoly(leg.legGeometry
-                        .getPoints());
+        if (itinerary.isEmpty() || mMapFailed) {
+            showRouteOverlay(null, 0);
+            return;
+        }
 
-                if (!points.isEmpty()) {
-                    MarkerOptions modeMarkerOption = generateModeMarkerOptions(leg, points.get(0),
-                            stepIndex);
+        RouteOverlay overlay = itineraryIndex < 0 ? null : mRouteOverlays.get(itineraryIndex);
+        if (overlay != null) {
+            showRouteOverlay(overlay, animateCamera);
+        } else {
+            mRouteRenderPreparationIndex = itineraryIndex;
+            mRouteRenderPreparation = new RouteRenderPreparation(mApplicationContext, itinerary,
+                    animateCamera, this);
+            // Not queued behind the network tasks, the route must be shown as soon as possible
+            ParallelTasks.execute(mRouteRenderPreparation);
+        }
+    }
 
-                    float scaleFactor = getResources().getFraction(R.fraction.scaleFactor, 1, 1);
+    @Override
+    public void onRouteRenderPrepared(RouteRenderBundle bundle) {
+        mRouteRenderPreparation = null;
+        if (mMapFailed) {
+            return;
+        }
 
+        RouteOverlay overlay = new RouteOverlay(mMap, mMarkerPool, mMarkerIconCache, bundle,
+                PolylineLevelsOfDetail.getLevel(mMap.getCameraPosition().zoom));
+        Log.d(OTPApp.TAG, "Route shown, " + mMarkerPool + ", " + mMarkerIconCache);
+        if (mRouteRenderPreparationIndex >= 0) {
+            mRouteOverlays.put(mRouteRenderPreparationIndex, overlay);
+        }
+        showRouteOverlay(overlay, bundle.getAnimateCamera());
+    }
 
-                    Marker modeMarker = mMap.addMarker(modeMarkerOption);
-                    boolean realtime = false;
-                    if (TraverseMode.valueOf(leg.mode).isTransit()) {
-                        realtime = leg.realTime;
-                    }
-                    TripInfo tripInfo = new TripInfo(realtime, leg.tripId,
-                            generateModeMarkerSnippet(leg), leg.departureDelay);
-                    mModeMarkers.put(modeMarker, tripInfo);
+    /**
+     * Shows an itinerary already added to the map, hiding the one shown before, or removing it
+     * if it is not kept.
+     *
+     * @param overlay       itinerary to show, or null to only hide the current one
+     * @param animateCamera type of camera animation, see {@link #showRouteOnMap(List, int)}
+     */
+    private void showRouteOverlay(RouteOverlay overlay, int animateCamera) {
+        if (mRouteOverlay != null && mRouteOverlay != overlay) {
+            if (mRouteOverlays.containsValue(mRouteOverlay)) {
+                mRouteOverlay.setVisible(false);
+            } else {
+                mRouteOverlay.remove();
+            }
+        }
+        mRouteOverlay = overlay;
+        if (overlay == null) {
+            mModeMarkers = new HashMap<Marker, TripInfo>();
+            return;
+        }
 
-                    if (TraverseMode.valueOf(leg.mode).isTransit()) {
-                        //because on transit two step-by-step indications are generated (get on / get off)
-                        stepIndex++;
+        overlay.setLevel(PolylineLevelsOfDetail.getLevel(mMap.getCameraPosition().zoom));
+        overlay.setVisible(true);
+        mModeMarkers = overlay.getModeMarkers();
+        mCustomInfoWindowAdapter.setMarkers(mModeMarkers);
+        mMap.setInfoWindowAdapter(mCustomInfoWindowAdapter);
 
-                        if (firstTransitMarker == null) {
-                            firstTransitMarker = modeMarker;
-                        }
-                    }
-                    PolylineOptions options = new PolylineOptions().addAll(points)
-                            .width(5 * scaleFactor)
-                            .color(OTPApp.COLOR_ROUTE_LINE);
-                    Polyline routeLine = mMap.addPolyline(options);
-                    mRoute.add(routeLine);
-                    for (LatLng point : points) {
-                        boundsCreator.include(point);
-                    }
-                }
-            }
-            mCustomInfoWindowAdapter.setMarkers(mModeMarkers);
-            mMap.setInfoWindowAdapter(mCustomInfoWindowAdapter);
-            if (animateCamera == 1){
-                if (firstTransitMarker != null){
-                    firstTransitMarker.showInfoWindow();
-                }
+        Marker firstTransitMarker = overlay.getFirstTransitMarker();
+        if (animateCamera == 1){
+            if (firstTransitMarker != null){
+                firstTransitMarker.showInfoWindow();
             }
-            if (animateCamera > 0) {
-                LatLngBounds routeBounds = boundsCreator.build();
-                if (((SupportMapFragment) getFragmentManager().findFragmentById(R.id.map)).getMap()
-                        != null){
-                    showRouteOnMapAnimateCamera(routeBounds, firstTransitMarker, animateCamera);
-                }
+        }
+        if (animateCamera > 0 && overlay.getBounds() != null) {
+            if (((SupportMapFragment) getFragmentManager().findFragmentById(R.id.map)).getMap()
+                    != null){
+                showRouteOnMapAnimateCamera(overlay.getBounds(), firstTransitMarker,
+                        animateCamera);
             }
         }
     }
 
-    private MarkerOptions generateModeMarkerOptions(Leg leg, LatLng location, int stepIndex){
-        MarkerOptions modeMarkerOption = new MarkerOptions().position(location);
-        Drawable drawable = getResources().getDrawable(getPathIcon(leg.mode));
-        if (drawable != null) {
-            BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable.getCurrent();
-            Bitmap bitmap = bitmapDrawable.getBitmap();
-            modeMarkerOption.icon(
-                    BitmapDescriptorFactory.fromBitmap(bitmap));
-        } else {
-            Log.e(OTPApp.TAG, "Error obtaining drawable to add mode icons to the map");
+    /**
+     * Removes from the map all the itineraries shown or kept, when the plan they belong to is
+     * no longer shown.
+     */
+    private void removeRouteOverlays() {
+        cancelRouteRenderPreparation();
+        for (RouteOverlay overlay : mRouteOverlays.values()) {
+            overlay.remove();
         }
-
-        modeMarkerOption.title(generateModeMarkerTitle(leg, stepIndex));
-
-        return modeMarkerOption;
+        if (mRouteOverlay != null && !mRouteOverlays.containsValue(mRouteOverlay)) {
+            mRouteOverlay.remove();
+        }
+        mRouteOverlays.clear();
+        mRouteOverlay = null;
+        mModeMarkers = null;
     }
 
-    private String generateModeMarkerTitle(Leg leg, int stepIndex){
-        TraverseMode traverseMode = TraverseMode.valueOf(leg.mode);
-        String title = "";
+    /**
+     * Stops the preparation of the last route requested if it is still running, its result is
+     * no longer wanted.
+     */
+    private void cancelRouteRenderPreparation() {
+        if (mRouteRenderPreparation != null) {
+            mRouteRenderPreparation.cancel(false);
+            mRouteRenderPreparation = null;
+        }
+    }
 
-        if (traverseMode.isTransit()) {
-            title = stepIndex + ". " + ConversionUtils
-                    .getRouteShortNameSafe(leg.routeShortName, leg.routeLongName,
-                            mApplicationContext)
-                    + " " + getResources().getString(R.string.map_markers_connector_before_stop) + " "
-                    + DirectionsGenerator.getLocalizedStreetName(leg.from.name,
-                    mApplicationContext.getResources());
+    /**
+     * Updates the information of the mode markers of a leg after its times change, in all the
+     * itineraries on the map.
+     *
+     * @param leg leg updated
+     */
+    private void updateModeMarkers(Leg leg) {
+        List<Map<Marker, TripInfo>> modeMarkersList = new ArrayList<Map<Marker, TripInfo>>();
+        for (RouteOverlay overlay : mRouteOverlays.values()) {
+            modeMarkersList.add(overlay.getModeMarkers());
         }
-        else{
-            if (traverseMode.equals(TraverseMode.WALK)) {
-                title = stepIndex + ". " + getResources()
-                        .getString(R.string.map_markers_mode_walk_action)
-                        + " " + getResources().getString(R.string.map_markers_connector_before_destination)
-                        + " " + DirectionsGenerator.getLocalizedStreetName(leg.to.name,
-                        mApplicationContext.getResources());
-            } else if (traverseMode.equals(TraverseMode.BICYCLE)) {
-                title = stepIndex + ". " + getResources()
-                        .getString(R.string.map_markers_mode_bicycle_action)
-                        + " " + getResources().getString(R.string.map_markers_connector_before_destination)
-                        + " " + DirectionsGenerator.getLocalizedStreetName(leg.to.name,
-                        mApplicationContext.getResources());
+        if (mRouteOverlay != null && !mRouteOverlays.containsValue(mRouteOverlay)) {
+            modeMarkersList.add(mRouteOverlay.getModeMarkers());
+        }
+        CharSequence snippet = null;
+        for (Map<Marker, TripInfo> modeMarkers : modeMarkersList) {
+            for (Map.Entry<Marker, TripInfo> entry : modeMarkers.entrySet()) {
+                if (leg.tripId.equals(entry.getValue().getTripId())){
+                    if (snippet == null) {
+                        snippet = generateModeMarkerSnippet(leg);
+                    }
+                    entry.getValue().setSnippet(snippet);
+                    entry.getValue().setDelayInSeconds(leg.departureDelay);
+                    if (entry.getKey().isInfoWindowShown()){
+                        entry.getKey().showInfoWindow();
+                    }
+                }
             }
         }
-        return title;
     }
 
     private CharSequence generateModeMarkerSnippet(Leg leg) {
-        CharSequence snippet;
-        long legDuration;
-        TraverseMode traverseMode = TraverseMode.valueOf(leg.mode);
-
-        if (mPrefs.getInt(OTPApp.PREFERENCE_KEY_API_VERSION, OTPApp.API_VERSION_V1)
-                == OTPApp.API_VERSION_V1){
-            legDuration = leg.duration;
-        } else{
-            legDuration = leg.duration / 1000;
-        }
-        if (traverseMode.isTransit()) {
-            CharSequence spannableSnippet = ConversionUtils
-                    .getTimeWithContext(mApplicationContext, leg.agencyTimeZoneOffset,
-                            Long.parseLong(leg.startTime), false);
-            if (leg.realTime){
-                int color = ConversionUtils.getDelayColor(leg.departureDelay, mApplicationContext);
-                spannableSnippet = ConversionUtils
-                        .getTimeWithContext(mApplicationContext, leg.agencyTimeZoneOffset,
-                                Long.parseLong(leg.startTime), false, color);
-            }
-            if (leg.headsign != null) {
-                snippet = TextUtils.concat(spannableSnippet, " ",
-                        getResources().getString(R.string.step_by_step_non_transit_to),
-                        " ", leg.headsign);
-            }
-            else{
-                snippet = spannableSnippet;
-            }
-        } else {
-            snippet = ConversionUtils
-                    .getFormattedDurationTextNoSeconds(legDuration, false,
-                            mApplicationContext) + " " + "-" + " "
-                    + ConversionUtils
-                    .getFormattedDistance(leg.distance, mApplicationContext);
-        }
-        return  snippet;
+        return RouteRenderPreparation.generateModeMarkerSnippet(mApplicationContext, leg);
     }
 
     /**
@@ -3278,45 +3422,6 @@ public class MainFragment extends Fragment implements
         }
     }
 
-    private int getPathIcon(String modeString) {
-        TraverseMode mode = TraverseMode.valueOf(modeString);
-        int icon;
-
-        if (mode.compareTo(TraverseMode.BICYCLE) == 0) {
-            icon = R.drawable.cycling;
-        } else if (mode.compareTo(TraverseMode.CAR) == 0) {
-            icon = R.drawable.car;
-        } else if ((mode.compareTo(TraverseMode.BUS) == 0) || (mode.compareTo(TraverseMode.BUSISH)
-                == 0)) {
-            icon = R.drawable.bus;
-        } else if ((mode.compareTo(TraverseMode.RAIL) == 0) || (
-                mode.compareTo(TraverseMode.TRAINISH) == 0)) {
-            icon = R.drawable.train;
-        } else if (mode.compareTo(TraverseMode.FERRY) == 0) {
-            icon = R.drawable.ferry;
-        } else if (mode.compareTo(TraverseMode.GONDOLA) == 0) {
-            icon = R.drawable.boat;
-        } else if (mode.compareTo(TraverseMode.SUBWAY) == 0) {
-            icon = R.drawable.underground;
-        } else if (mode.compareTo(TraverseMode.TRAM) == 0) {
-            icon = R.drawable.tramway;
-        } else if (mode.compareTo(TraverseMode.WALK) == 0) {
-            icon = R.drawable.pedestriancrossing;
-        } else if (mode.compareTo(TraverseMode.CABLE_CAR) == 0) {
-            icon = R.drawable.cablecar;
-        } else if (mode.compareTo(TraverseMode.FUNICULAR) == 0) {
-            icon = R.drawable.funicolar;
-        } else if (mode.compareTo(TraverseMode.TRANSIT) == 0) {
-            icon = R.drawable.road;
-        } else if (mode.compareTo(TraverseMode.TRANSFER) == 0) {
-            icon = R.drawable.caution;
-        } else {
-            icon = R.drawable.road;
-        }
-
-        return icon;
-    }
-
     public OtpFragment getFragmentListener() {
         return mFragmentListener;
     }
@@ -3344,6 +3449,8 @@ public class MainFragment extends Fragment implements
 
             OtpFragment ofl = getFragmentListener();
 
+            // Itineraries of the previous plan can't be shown again
+            removeRouteOverlays();
             // onItinerariesLoaded must be invoked before onItinerarySelected(0)
             ofl.onItinerariesLoaded(itineraries);
             ofl.onItinerarySelected(0, 1);
@@ -3773,17 +3880,8 @@ public class MainFragment extends Fragment implements
     }
 
     private boolean checkServersAreUpdated() {
-        ServersDataSource dataSource = ServersDataSource.getInstance(mApplicationContext);
-        dataSource.open();
-        boolean result;
-        Calendar someDaysBefore = Calendar.getInstance();
-        someDaysBefore.add(Calendar.DAY_OF_MONTH, -OTPApp.EXPIRATION_DAYS_FOR_SERVER_LIST);
-        Long serversUpdateDate = dataSource.getMostRecentDate();
-        result = !((serversUpdateDate != null) && (someDaysBefore.getTime().getTime()
-                > serversUpdateDate));
-        dataSource.close();
-
-        return result;
+        ServerDirectory directory = ServerDirectory.getInstance(mApplicationContext);
+        return directory.isEmpty() || !directory.isExpired();
     }
 
     @Override
@@ -3834,8 +3932,29 @@ public class MainFragment extends Fragment implements
         if (position.zoom > mMaxZoomLevel && !mMapFailed) {
             mMap.moveCamera(CameraUpdateFactory.zoomTo(mMaxZoomLevel));
         }
+        if (mRouteOverlay != null) {
+            mRouteOverlay.setLevel(PolylineLevelsOfDetail.getLevel(position.zoom));
+        }
+        mCameraIdleHandler.removeCallbacks(mCameraIdleRunnable);
+        mCameraIdleHandler.postDelayed(mCameraIdleRunnable, OTPApp.MAP_CAMERA_IDLE_DELAY);
     }
 
+    /**
+     * Keeps on the map only the markers close to the visible region, once the camera stops.
+     */
+    private void onCameraIdle() {
+        if (mMapFailed || getActivity() == null) {
+            return;
+        }
+        LatLngBounds visibleBounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        if (mBikeRentalStations != null) {
+            mBikeRentalStations.setCamera(mMap.getCameraPosition().zoom, visibleBounds);
+        }
+        if (mRouteOverlay != null) {
+            mRouteOverlay.setVisibleBounds(
+                    LocationUtil.expandBounds(visibleBounds, OTPApp.MAP_VIEWPORT_MARGIN));
+        }
+    }
 
     @Override
     public void onDateComplete(Date tripDate, boolean arriveBy) {
@@ -3858,46 +3977,23 @@ public class MainFragment extends Fragment implements
         mBikeTriangleMaxValue = maxValue;
         String bikeParam = minValue.toString() + maxValue.toString();
         Log.d(OTPApp.TAG, bikeParam);
+        speculatePlan();
     }
 
     @Override
-    public void onBikeRentalStationListLoad(BikeRentalStationList bikeRentalStationList) {
+    public void onBikeRentalStationListLoad(BikeRentalStationList bikeRentalStationList,
+            BikeRentalClusters bikeRentalClusters) {
         removeBikeStations();
         if (mBtnModeRentedBike.isChecked()){
             if (bikeRentalStationList != null){
                 List<BikeRentalStation> listOfBikeRentalStations = bikeRentalStationList.stations;
                 if ((listOfBikeRentalStations != null) && !listOfBikeRentalStations.isEmpty()){
-                    mBikeRentalStations = new HashMap<Marker, BikeRentalStationInfo>(listOfBikeRentalStations.size());
-
-                    MarkerOptions bikeRentalStationMarkerOption = new MarkerOptions();
-
-                    Drawable drawable = getResources().getDrawable(R.drawable.parking_bicycle);
-                    if (drawable != null) {
-                        BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable.getCurrent();
-                        Bitmap bitmap = bitmapDrawable.getBitmap();
-                        bikeRentalStationMarkerOption.icon(
-                                BitmapDescriptorFactory.fromBitmap(bitmap));
-                    } else {
-                        Log.e(OTPApp.TAG, "Error obtaining drawable to add bike rental icons to the map");
-                    }
-
-                    for (BikeRentalStation bikeRentalStation : listOfBikeRentalStations){
-                        LatLng position = new LatLng(bikeRentalStation.y,
-                                bikeRentalStation.x);
-                        bikeRentalStationMarkerOption.position(position);
-                        bikeRentalStationMarkerOption.title(bikeRentalStation.name);
-                        bikeRentalStationMarkerOption.snippet(getResources()
-                                .getString(R.string.map_markers_bike_rental_available_bikes) + " " +
-                                bikeRentalStation.bikesAvailable + " | " + getResources()
-                                .getString(R.string.map_markers_bike_rental_available_spaces) + " " +
-                                bikeRentalStation.spacesAvailable);
-                        if (!mMapFailed){
-                            Marker bikeRentalStationMarker = mMap.addMarker(bikeRentalStationMarkerOption);
-                            BikeRentalStationInfo bikeRentalStationInfo = new BikeRentalStationInfo(position,
-                                    bikeRentalStation.name);
-
-                            mBikeRentalStations.put(bikeRentalStationMarker, bikeRentalStationInfo);
-                        }
+                    if (!mMapFailed){
+                        mBikeRentalStations = new BikeRentalStationsOverlay(mMap, mMarkerPool,
+                                mMarkerIconCache, R.drawable.parking_bicycle, getResources());
+                        mBikeRentalStations.setClusters(bikeRentalClusters,
+                                mMap.getCameraPosition().zoom,
+                                mMap.getProjection().getVisibleRegion().latLngBounds);
                     }
                     listenForBikeUpdates(true);
                 }
@@ -3910,26 +4006,15 @@ public class MainFragment extends Fragment implements
     }
 
     @Override
-    public void onBikeRentalStationListUpdate(BikeRentalStationList bikeRentalStationList) {
+    public void onBikeRentalStationListUpdate(BikeRentalStationList bikeRentalStationList,
+            BikeRentalClusters bikeRentalClusters) {
         if (getActivity() != null){
             if (bikeRentalStationList != null) {
                 List<BikeRentalStation> listOfBikeRentalStations = bikeRentalStationList.stations;
-                if ((listOfBikeRentalStations != null) && !listOfBikeRentalStations.isEmpty()
-                        && (mBikeRentalStations != null) && !mBikeRentalStations.isEmpty()) {
-                    for (BikeRentalStation bikeRentalStation : listOfBikeRentalStations) {
-                        for (Map.Entry<Marker, BikeRentalStationInfo> entry : mBikeRentalStations.entrySet()) {
-                            if (entry.getKey().getTitle().equals(bikeRentalStation.name)) {
-                                entry.getKey().setSnippet(getResources()
-                                        .getString(R.string.map_markers_bike_rental_available_bikes) + " " +
-                                        bikeRentalStation.bikesAvailable + " | " + getResources()
-                                        .getString(R.string.map_markers_bike_rental_available_spaces) + " " +
-                                        bikeRentalStation.spacesAvailable);
-                            }
-                            if (entry.getKey().isInfoWindowShown()) {
-                                entry.getKey().showInfoWindow();
-                            }
-                        }
-                    }
+                if ((listOfBikeRentalStations != null) && (mBikeRentalStations != null)) {
+                    mBikeRentalStations.setClusters(bikeRentalClusters,
+                            mMap.getCameraPosition().zoom,
+                            mMap.getProjection().getVisibleRegion().latLngBounds);
                 }
             }
             else{
@@ -3968,9 +4053,7 @@ public class MainFragment extends Fragment implements
 
     public void removeBikeStations(){
         if (mBikeRentalStations != null) {
-            for (Map.Entry<Marker, BikeRentalStationInfo> entry : mBikeRentalStations.entrySet()) {
-                entry.getKey().remove();
-            }
+            mBikeRentalStations.remove();
             mBikeRentalStations = null;
         }
     }
@@ -4032,15 +4115,7 @@ public class MainFragment extends Fragment implements
                                 if ((firstStopUpdate != null) && (lastStopUpdate != null)){
                                     int legsUpdated = updateLeg(leg, firstStopUpdate, lastStopUpdate);
                                     if (legsUpdated != 0){
-                                        for (Map.Entry<Marker, TripInfo> entry : mModeMarkers.entrySet()) {
-                                            if (leg.tripId.equals(entry.getValue().getTripId())){
-                                                entry.getValue().setSnippet(generateModeMarkerSnippet(leg));
-                                                entry.getValue().setDelayInSeconds(leg.departureDelay);
-                                                if (entry.getKey().isInfoWindowShown()){
-                                                    entry.getKey().showInfoWindow();
-                                                }
-                                            }
-                                        }
+                                        updateModeMarkers(leg);
                                         showNotification(leg, legsUpdated);
                                     }
                                 }
@@ -20,11 +20,15 @@ import org.opentripplanner.routing.bike_rental.BikeRentalStationList;
 
 import java.util.List;
 
+import edu.usf.cutr.opentripplanner.android.util.BikeRentalClusters;
+
 public interface BikeRentalLoadCompleteListener {
 
-    public void onBikeRentalStationListLoad(BikeRentalStationList bikeRentalStationCollection);
+    public void onBikeRentalStationListLoad(BikeRentalStationList bikeRentalStationCollection,
+            BikeRentalClusters bikeRentalClusters);
 
-    public void onBikeRentalStationListUpdate(BikeRentalStationList bikeRentalStationCollection);
+    public void onBikeRentalStationListUpdate(BikeRentalStationList bikeRentalStationCollection,
+            BikeRentalClusters bikeRentalClusters);
 
     public void onBikeRentalStationListFail();
 
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.maps;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.R;
+import edu.usf.cutr.opentripplanner.android.model.BikeRentalCluster;
+import edu.usf.cutr.opentripplanner.android.util.BikeRentalClusters;
+import edu.usf.cutr.opentripplanner.android.util.BikeRentalStationInfo;
+import edu.usf.cutr.opentripplanner.android.util.LocationUtil;
+
+/**
+ * Markers of the bike rental stations of the selected server, grouped by
+ * {@link BikeRentalClusters} for the zoom level of the map.
+ * <p>
+ * Only the groups inside the visible region, plus a margin around it, have a marker. The region
+ * is updated when the camera stops, and markers are only changed when the zoom level changes or
+ * the visible region leaves the one with markers.
+ * <p>
+ * Markers are identified by the id of their station or group, so each change of groups, because
+ * of a new list of stations from the server or a move of the camera, is applied as a diff: only
+ * the markers of groups added, removed or different are touched. Must only be used from the UI
+ * thread.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class BikeRentalStationsOverlay {
+
+    private final GoogleMap map;
+
+    private final MarkerPool markerPool;
+
+    private final BitmapDescriptor icon;
+
+    // Icon key of the markers in the pool
+    private final int iconResource;
+
+    private final String availableBikesText;
+
+    private final String availableSpacesText;
+
+    private final String stationsText;
+
+    private final Map<String, Marker> markersById = new HashMap<String, Marker>();
+
+    private final Map<Marker, BikeRentalCluster> shown = new HashMap<Marker, BikeRentalCluster>();
+
+    private BikeRentalClusters clusters;
+
+    private int level = -1;
+
+    private LatLngBounds shownBounds;
+
+    /**
+     * @param map          map where the stations are shown
+     * @param markerPool   pool to take the markers from, and return them to when removed
+     * @param icons        cache of the marker icons
+     * @param iconResource drawable of the icon of the markers
+     * @param resources    resources to build the titles and snippets of the markers
+     */
+    public BikeRentalStationsOverlay(GoogleMap map, MarkerPool markerPool, MarkerIconCache icons,
+            int iconResource, Resources resources) {
+        this.map = map;
+        this.markerPool = markerPool;
+        this.icon = icons.getIcon(iconResource);
+        this.iconResource = iconResource;
+        this.availableBikesText = resources
+                .getString(R.string.map_markers_bike_rental_available_bikes);
+        this.availableSpacesText = resources
+                .getString(R.string.map_markers_bike_rental_available_spaces);
+        this.stationsText = resources.getString(R.string.map_markers_bike_rental_stations);
+    }
+
+    /**
+     * Shows a new list of stations.
+     *
+     * @param clusters      stations of the server, grouped
+     * @param zoom          current zoom level of the map
+     * @param visibleBounds current visible region of the map
+     */
+    public void setClusters(BikeRentalClusters clusters, float zoom,
+            LatLngBounds visibleBounds) {
+        this.clusters = clusters;
+        show(zoom, visibleBounds);
+    }
+
+    /**
+     * Shows the groups for the zoom level and visible region, if they are not already shown.
+     *
+     * @param zoom          current zoom level of the map
+     * @param visibleBounds current visible region of the map
+     */
+    public void setCamera(float zoom, LatLngBounds visibleBounds) {
+        if (clusters == null) {
+            return;
+        }
+        if (clusters.getLevel(zoom) == level && shownBounds.contains(visibleBounds.southwest)
+                && shownBounds.contains(visibleBounds.northeast)) {
+            return;
+        }
+        show(zoom, visibleBounds);
+    }
+
+    private void show(float zoom, LatLngBounds visibleBounds) {
+        level = clusters.getLevel(zoom);
+        shownBounds = LocationUtil.expandBounds(visibleBounds, OTPApp.MAP_VIEWPORT_MARGIN);
+        show(clusters.getClusters(zoom, shownBounds));
+    }
+
+    private void show(List<BikeRentalCluster> newClusters) {
+        int added = 0, changed = 0, removed = 0;
+        Set<String> ids = new HashSet<String>(newClusters.size() * 2);
+
+        for (BikeRentalCluster cluster : newClusters) {
+            ids.add(cluster.getId());
+            Marker marker = markersById.get(cluster.getId());
+            if (marker == null) {
+                MarkerOptions options = new MarkerOptions()
+                        .position(cluster.getPosition())
+                        .title(generateTitle(cluster))
+                        .snippet(generateSnippet(cluster))
+                        .icon(icon);
+                marker = markerPool.acquire(map, iconResource, options);
+                markersById.put(cluster.getId(), marker);
+                shown.put(marker, cluster);
+                added++;
+                continue;
+            }
+
+            BikeRentalCluster previous = shown.get(marker);
+            if (!cluster.isShownAs(previous)) {
+                if (!cluster.getPosition().equals(previous.getPosition())) {
+                    marker.setPosition(cluster.getPosition());
+                }
+                marker.setTitle(generateTitle(cluster));
+                marker.setSnippet(generateSnippet(cluster));
+                if (marker.isInfoWindowShown()) {
+                    marker.showInfoWindow();
+                }
+                changed++;
+            }
+            shown.put(marker, cluster);
+        }
+
+        Iterator<Map.Entry<String, Marker>> iterator = markersById.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Marker> entry = iterator.next();
+            if (!ids.contains(entry.getKey())) {
+                shown.remove(entry.getValue());
+                markerPool.release(entry.getValue());
+                iterator.remove();
+                removed++;
+            }
+        }
+
+        Log.d(OTPApp.TAG, "Bike rental stations shown, " + newClusters.size() + " markers for "
+                + clusters.size() + " stations, " + added + " added, " + changed + " changed, "
+                + removed + " removed, " + markerPool);
+    }
+
+    /**
+     * Removes all the markers from the map, returning them to the pool.
+     */
+    public void remove() {
+        for (Marker marker : markersById.values()) {
+            markerPool.release(marker);
+        }
+        markersById.clear();
+        shown.clear();
+        clusters = null;
+        level = -1;
+        shownBounds = null;
+    }
+
+    /**
+     * @param marker a marker of the map
+     * @return the station of the marker, or null if it is not a single station of this overlay
+     */
+    public BikeRentalStationInfo getStationInfo(Marker marker) {
+        BikeRentalCluster cluster = shown.get(marker);
+        if (cluster == null || cluster.isGroup()) {
+            return null;
+        }
+        return new BikeRentalStationInfo(cluster.getPosition(), cluster.getName());
+    }
+
+    /**
+     * @param marker a marker of the map
+     * @return true if the marker shows a group of stations of this overlay
+     */
+    public boolean isGroup(Marker marker) {
+        BikeRentalCluster cluster = shown.get(marker);
+        return cluster != null && cluster.isGroup();
+    }
+
+    public boolean isEmpty() {
+        return shown.isEmpty();
+    }
+
+    private String generateTitle(BikeRentalCluster cluster) {
+        if (cluster.isGroup()) {
+            return stationsText + " " + cluster.getStationCount();
+        }
+        return cluster.getName();
+    }
+
+    private String generateSnippet(BikeRentalCluster cluster) {
+        return availableBikesText + " " + cluster.getBikesAvailable() + " | "
+                + availableSpacesText + " " + cluster.getSpacesAvailable();
+    }
+}
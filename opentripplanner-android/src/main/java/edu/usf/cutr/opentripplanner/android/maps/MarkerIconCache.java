@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.maps;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+import android.content.res.Resources;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+
+/**
+ * Icons of the map markers, by drawable resource, so each drawable is only loaded and converted
+ * to a BitmapDescriptor once.
+ * <p>
+ * Must only be used from the UI thread.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class MarkerIconCache {
+
+    private final Resources resources;
+
+    private final SparseArray<BitmapDescriptor> icons = new SparseArray<BitmapDescriptor>();
+
+    private int hits;
+
+    private int misses;
+
+    public MarkerIconCache(Resources resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * @param resourceId drawable of the icon, it must be a bitmap
+     * @return the icon, or null if the drawable couldn't be loaded
+     */
+    public BitmapDescriptor getIcon(int resourceId) {
+        BitmapDescriptor icon = icons.get(resourceId);
+        if (icon != null) {
+            hits++;
+            return icon;
+        }
+        misses++;
+        Drawable drawable = resources.getDrawable(resourceId);
+        if (drawable != null) {
+            icon = BitmapDescriptorFactory.fromBitmap(
+                    ((BitmapDrawable) drawable.getCurrent()).getBitmap());
+            icons.put(resourceId, icon);
+        } else {
+            Log.e(OTPApp.TAG, "Error obtaining drawable to add icons to the map");
+        }
+        return icon;
+    }
+
+    /**
+     * @return number of icons returned from the cache
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of icons that had to be loaded
+     */
+    public int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return "MarkerIconCache{size=" + icons.size() + ", hits=" + hits + ", misses=" + misses
+                + "}";
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.maps;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Markers no longer needed, kept hidden on the map to be moved and shown again instead of
+ * removing them and adding new ones.
+ * <p>
+ * The icon and the anchor of a marker can't be changed with the Maps API used, so markers are
+ * kept by icon key and only reused for markers with the same icon and anchor.
+ * <p>
+ * Must only be used from the UI thread.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class MarkerPool {
+
+    private final int maxSize;
+
+    // Hidden markers by icon key
+    private final Map<Integer, List<Marker>> markers = new HashMap<Integer, List<Marker>>();
+
+    // Icon key of every marker added by the pool, by marker id
+    private final Map<String, Integer> iconKeys = new HashMap<String, Integer>();
+
+    private int size;
+
+    private GoogleMap map;
+
+    private int created;
+
+    private int reused;
+
+    private int removed;
+
+    /**
+     * @param maxSize maximum number of markers kept, markers released when it is full are removed
+     */
+    public MarkerPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a marker with the options, reusing a marker of the pool with the same icon key if
+     * possible.
+     *
+     * @param map     map where the marker is shown
+     * @param iconKey identifies the icon and anchor of the options, such as the icon resource
+     * @param options options of the marker, a reused one only gets its position, title,
+     *                snippet, draggable and visible options
+     * @return the marker
+     */
+    public Marker acquire(GoogleMap map, int iconKey, MarkerOptions options) {
+        if (map != this.map) {
+            // Markers of another map can't be reused
+            markers.clear();
+            iconKeys.clear();
+            size = 0;
+            this.map = map;
+        }
+        List<Marker> idle = markers.get(iconKey);
+        if (idle == null || idle.isEmpty()) {
+            created++;
+            Marker marker = map.addMarker(options);
+            iconKeys.put(marker.getId(), iconKey);
+            return marker;
+        }
+
+        reused++;
+        size--;
+        Marker marker = idle.remove(idle.size() - 1);
+        marker.setPosition(options.getPosition());
+        marker.setTitle(options.getTitle());
+        marker.setSnippet(options.getSnippet());
+        marker.setDraggable(options.isDraggable());
+        marker.setVisible(options.isVisible());
+        return marker;
+    }
+
+    /**
+     * Hides the marker and keeps it to be reused, or removes it if the pool is full.
+     *
+     * @param marker marker no longer needed, it must not be used after this
+     */
+    public void release(Marker marker) {
+        Integer iconKey = iconKeys.get(marker.getId());
+        if (iconKey == null || size >= maxSize) {
+            removed++;
+            iconKeys.remove(marker.getId());
+            marker.remove();
+            return;
+        }
+        marker.hideInfoWindow();
+        marker.setVisible(false);
+        List<Marker> idle = markers.get(iconKey);
+        if (idle == null) {
+            idle = new ArrayList<Marker>();
+            markers.put(iconKey, idle);
+        }
+        idle.add(marker);
+        size++;
+    }
+
+    /**
+     * @return number of markers added to the map
+     */
+    public int getCreated() {
+        return created;
+    }
+
+    /**
+     * @return number of markers reused instead of adding new ones
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    @Override
+    public String toString() {
+        return "MarkerPool{size=" + size + ", created=" + created + ", reused="
+                + reused + ", removed=" + removed + "}";
+    }
+}
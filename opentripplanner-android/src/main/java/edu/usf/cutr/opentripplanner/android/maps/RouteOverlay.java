@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.maps;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.usf.cutr.opentripplanner.android.model.RouteRenderBundle;
+import edu.usf.cutr.opentripplanner.android.util.PolylineLevelsOfDetail;
+import edu.usf.cutr.opentripplanner.android.util.TripInfo;
+
+/**
+ * Lines and mode markers of an itinerary added to the map.
+ * <p>
+ * The objects stay on the map until {@link #remove()} is called, so an itinerary can be hidden
+ * and shown again without building it again. While shown, mode markers far from the visible
+ * region can be hidden with {@link #setVisibleBounds(LatLngBounds)}. Must only be used from the
+ * UI thread.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class RouteOverlay {
+
+    private final MarkerPool markerPool;
+
+    private final List<Polyline> lines;
+
+    private final List<PolylineLevelsOfDetail> levels;
+
+    private final Map<Marker, TripInfo> modeMarkers;
+
+    private final Marker firstTransitMarker;
+
+    // Mode markers hidden because they are out of the visible region
+    private final Set<Marker> culledMarkers = new HashSet<Marker>();
+
+    private final LatLngBounds bounds;
+
+    private int level;
+
+    private boolean visible = true;
+
+    /**
+     * Adds the objects of the itinerary to the map, visible.
+     *
+     * @param map        map where the itinerary is shown
+     * @param markerPool pool to take the markers from, and return them to when removed
+     * @param icons      icons of the markers
+     * @param bundle     itinerary prepared to be shown
+     * @param level      level of detail of the lines, from {@link PolylineLevelsOfDetail}
+     */
+    public RouteOverlay(GoogleMap map, MarkerPool markerPool, MarkerIconCache icons,
+            RouteRenderBundle bundle, int level) {
+        this.markerPool = markerPool;
+        List<RouteRenderBundle.LegRender> legs = bundle.getLegs();
+        this.lines = new ArrayList<Polyline>(legs.size());
+        this.levels = new ArrayList<PolylineLevelsOfDetail>(legs.size());
+        this.modeMarkers = new HashMap<Marker, TripInfo>();
+        this.bounds = bundle.getBounds();
+        this.level = level;
+
+        Marker firstTransitMarker = null;
+        for (RouteRenderBundle.LegRender leg : legs) {
+            MarkerOptions modeMarkerOption = leg.getMarkerOptions();
+            modeMarkerOption.icon(icons.getIcon(leg.getMarkerIconResource()));
+            Marker modeMarker = markerPool.acquire(map, leg.getMarkerIconResource(),
+                    modeMarkerOption);
+            modeMarkers.put(modeMarker, leg.getTripInfo());
+            if (leg.isTransit() && firstTransitMarker == null) {
+                firstTransitMarker = modeMarker;
+            }
+
+            PolylineOptions options = leg.getPolylineOptions()
+                    .addAll(leg.getPoints().getPoints(level));
+            lines.add(map.addPolyline(options));
+            levels.add(leg.getPoints());
+        }
+        this.firstTransitMarker = firstTransitMarker;
+    }
+
+    /**
+     * Replaces the points of the lines with the version for the level of detail, if it is not
+     * the one already shown.
+     *
+     * @param level level of detail, from {@link PolylineLevelsOfDetail#getLevel(float)}
+     */
+    public void setLevel(int level) {
+        if (level == this.level) {
+            return;
+        }
+        this.level = level;
+        for (int i = 0; i < lines.size(); i++) {
+            lines.get(i).setPoints(levels.get(i).getPoints(level));
+        }
+    }
+
+    public void setVisible(boolean visible) {
+        if (visible == this.visible) {
+            return;
+        }
+        this.visible = visible;
+        for (Polyline line : lines) {
+            line.setVisible(visible);
+        }
+        culledMarkers.clear();
+        for (Marker marker : modeMarkers.keySet()) {
+            if (!visible) {
+                marker.hideInfoWindow();
+            }
+            marker.setVisible(visible);
+        }
+    }
+
+    /**
+     * Hides the mode markers out of a region of the map and shows the ones inside it again. Does
+     * nothing if the overlay is hidden, showing it shows all the markers.
+     *
+     * @param bounds visible region of the map, with the margin where markers are kept
+     */
+    public void setVisibleBounds(LatLngBounds bounds) {
+        if (!visible) {
+            return;
+        }
+        for (Marker marker : modeMarkers.keySet()) {
+            boolean inside = bounds.contains(marker.getPosition());
+            if (inside && culledMarkers.remove(marker)) {
+                marker.setVisible(true);
+            } else if (!inside && culledMarkers.add(marker)) {
+                marker.hideInfoWindow();
+                marker.setVisible(false);
+            }
+        }
+    }
+
+    /**
+     * Removes all the objects from the map, returning the markers to the pool. The overlay
+     * can't be used after this.
+     */
+    public void remove() {
+        for (Polyline line : lines) {
+            line.remove();
+        }
+        for (Marker marker : modeMarkers.keySet()) {
+            markerPool.release(marker);
+        }
+        lines.clear();
+        modeMarkers.clear();
+        culledMarkers.clear();
+    }
+
+    /**
+     * @return mode markers with the information of their legs
+     */
+    public Map<Marker, TripInfo> getModeMarkers() {
+        return modeMarkers;
+    }
+
+    /**
+     * @return marker of the first transit leg, or null if there is none
+     */
+    public Marker getFirstTransitMarker() {
+        return firstTransitMarker;
+    }
+
+    /**
+     * @return bounds of all the lines, or null if the itinerary has no geometry
+     */
+    public LatLngBounds getBounds() {
+        return bounds;
+    }
+}
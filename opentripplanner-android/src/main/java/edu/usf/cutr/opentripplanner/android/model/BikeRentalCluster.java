@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.model;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Group of nearby bike rental stations shown as a single marker, or a single station.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class BikeRentalCluster {
+
+    private final String id;
+
+    private final LatLng position;
+
+    private final String name;
+
+    private final int stationCount;
+
+    private final int bikesAvailable;
+
+    private final int spacesAvailable;
+
+    /**
+     * @param id              id of the station, or of the cell of the grid for a group
+     * @param position        position of the station, or center of the stations of the group
+     * @param name            name of the station, null for a group
+     * @param stationCount    number of stations
+     * @param bikesAvailable  bikes available in all the stations
+     * @param spacesAvailable free spaces in all the stations
+     */
+    public BikeRentalCluster(String id, LatLng position, String name, int stationCount,
+            int bikesAvailable, int spacesAvailable) {
+        this.id = id;
+        this.position = position;
+        this.name = name;
+        this.stationCount = stationCount;
+        this.bikesAvailable = bikesAvailable;
+        this.spacesAvailable = spacesAvailable;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public LatLng getPosition() {
+        return position;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getStationCount() {
+        return stationCount;
+    }
+
+    public int getBikesAvailable() {
+        return bikesAvailable;
+    }
+
+    public int getSpacesAvailable() {
+        return spacesAvailable;
+    }
+
+    /**
+     * @return true if this groups more than one station
+     */
+    public boolean isGroup() {
+        return stationCount > 1;
+    }
+
+    /**
+     * @return true if a marker showing the other cluster needs no change to show this one
+     */
+    public boolean isShownAs(BikeRentalCluster other) {
+        return position.equals(other.position)
+                && (name == null ? other.name == null : name.equals(other.name))
+                && stationCount == other.stationCount
+                && bikesAvailable == other.bikesAvailable
+                && spacesAvailable == other.spacesAvailable;
+    }
+}
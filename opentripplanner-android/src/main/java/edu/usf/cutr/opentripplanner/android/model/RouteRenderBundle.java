@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.model;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.Collections;
+import java.util.List;
+
+import edu.usf.cutr.opentripplanner.android.util.PolylineLevelsOfDetail;
+import edu.usf.cutr.opentripplanner.android.util.TripInfo;
+
+/**
+ * Everything needed to draw an itinerary on the map, prepared out of the UI thread so the map
+ * only has to add the objects.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class RouteRenderBundle {
+
+    /**
+     * Map objects of a leg of the itinerary.
+     */
+    public static class LegRender {
+
+        private final MarkerOptions markerOptions;
+
+        private final int markerIconResource;
+
+        private final TripInfo tripInfo;
+
+        private final boolean transit;
+
+        private final PolylineOptions polylineOptions;
+
+        private final PolylineLevelsOfDetail points;
+
+        public LegRender(MarkerOptions markerOptions, int markerIconResource, TripInfo tripInfo,
+                boolean transit, PolylineOptions polylineOptions,
+                PolylineLevelsOfDetail points) {
+            this.markerOptions = markerOptions;
+            this.markerIconResource = markerIconResource;
+            this.tripInfo = tripInfo;
+            this.transit = transit;
+            this.polylineOptions = polylineOptions;
+            this.points = points;
+        }
+
+        /**
+         * @return options of the mode marker, without the icon
+         */
+        public MarkerOptions getMarkerOptions() {
+            return markerOptions;
+        }
+
+        /**
+         * @return drawable of the icon of the mode marker
+         */
+        public int getMarkerIconResource() {
+            return markerIconResource;
+        }
+
+        public TripInfo getTripInfo() {
+            return tripInfo;
+        }
+
+        public boolean isTransit() {
+            return transit;
+        }
+
+        /**
+         * @return style of the line of the leg, without points
+         */
+        public PolylineOptions getPolylineOptions() {
+            return polylineOptions;
+        }
+
+        /**
+         * @return points of the line of the leg, for each level of detail
+         */
+        public PolylineLevelsOfDetail getPoints() {
+            return points;
+        }
+    }
+
+    private final List<LegRender> legs;
+
+    private final LatLngBounds bounds;
+
+    private final int animateCamera;
+
+    public RouteRenderBundle(List<LegRender> legs, LatLngBounds bounds, int animateCamera) {
+        this.legs = Collections.unmodifiableList(legs);
+        this.bounds = bounds;
+        this.animateCamera = animateCamera;
+    }
+
+    /**
+     * @return legs with geometry, in itinerary order
+     */
+    public List<LegRender> getLegs() {
+        return legs;
+    }
+
+    /**
+     * @return bounds of all the legs, or null if no leg has geometry
+     */
+    public LatLngBounds getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return type of camera animation requested when showing the route
+     */
+    public int getAnimateCamera() {
+        return animateCamera;
+    }
+}
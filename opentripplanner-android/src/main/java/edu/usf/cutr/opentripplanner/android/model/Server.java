@@ -86,9 +86,22 @@ public class Server {
         setDate(s.getDate());
         setRegion(s.getRegion());
         setBaseURL(s.getBaseURL());
-        setBounds(s.getBounds());  // do extra string processing to set lowerleft and upperright
-        setCenter(s.getCenter());
-        setZoom(s.getZoom());
+        if (s.areBoundsSet()) {
+            setBounds(s.getBounds(), s.getLowerLeftLatitude(), s.getLowerLeftLongitude(),
+                    s.getUpperRightLatitude(), s.getUpperRightLongitude());
+        } else {
+            setBounds(s.getBounds());  // do extra string processing to set lowerleft and upperright
+        }
+        if (s.isCenterSet()) {
+            setCenter(s.getCenter(), s.getCenterLatitude(), s.getCenterLongitude());
+        } else {
+            setCenter(s.getCenter());
+        }
+        if (s.isZoomSet()) {
+            setZoom(s.getZoom(), s.getInitialZoom());
+        } else {
+            setZoom(s.getZoom());
+        }
         setLanguage(s.getLanguage());
         setContactName(s.getContactName());
         setContactEmail(s.getContactEmail());
@@ -178,6 +191,18 @@ public class Server {
         }
     }
 
+    /**
+     * Sets the zoom when its value was already parsed, as it is stored in the database.
+     *
+     * @param zoom        zoom as it appears in the server directory
+     * @param initialZoom parsed value of the zoom
+     */
+    public void setZoom(String zoom, float initialZoom) {
+        setInitialZoom(initialZoom);
+        zoomSet = true;
+        this.zoom = zoom;
+    }
+
     public String getCenter() {
         return center;
     }
@@ -199,6 +224,21 @@ public class Server {
         }
     }
 
+    /**
+     * Sets the center when its coordinates were already parsed, as they are stored in the
+     * database.
+     *
+     * @param center          center as it appears in the server directory
+     * @param centerLatitude  parsed latitude of the center
+     * @param centerLongitude parsed longitude of the center
+     */
+    public void setCenter(String center, double centerLatitude, double centerLongitude) {
+        setCenterLatitude(centerLatitude);
+        setCenterLongitude(centerLongitude);
+        centerSet = true;
+        this.center = center;
+    }
+
     public String getBounds() {
         return bounds;
     }
@@ -223,6 +263,26 @@ public class Server {
         }
     }
 
+    /**
+     * Sets the bounds when their coordinates were already parsed, as they are stored in the
+     * database.
+     *
+     * @param bounds              bounds as they appear in the server directory
+     * @param lowerLeftLatitude   parsed latitude of the lower left corner
+     * @param lowerLeftLongitude  parsed longitude of the lower left corner
+     * @param upperRightLatitude  parsed latitude of the upper right corner
+     * @param upperRightLongitude parsed longitude of the upper right corner
+     */
+    public void setBounds(String bounds, double lowerLeftLatitude, double lowerLeftLongitude,
+            double upperRightLatitude, double upperRightLongitude) {
+        setLowerLeftLatitude(lowerLeftLatitude);
+        setLowerLeftLongitude(lowerLeftLongitude);
+        setUpperRightLatitude(upperRightLatitude);
+        setUpperRightLongitude(upperRightLongitude);
+        boundsSet = true;
+        this.bounds = bounds;
+    }
+
     public String getLanguage() {
         return language;
     }
@@ -409,4 +469,30 @@ public class Server {
         this.offersBikeRental = Boolean.parseBoolean(bikeRental);
     }
 
+    /**
+     * @return key that identifies this server in the server directory
+     */
+    public String getDirectoryKey() {
+        return region + "|" + baseURL;
+    }
+
+    /**
+     * Compares the fields that come from the server directory, ignoring id and date.
+     *
+     * @param other server to compare with
+     * @return true if the directory entry of both servers is the same
+     */
+    public boolean hasSameDirectoryFields(Server other) {
+        return equalOrNull(region, other.region) && equalOrNull(baseURL, other.baseURL)
+                && equalOrNull(bounds, other.bounds) && equalOrNull(center, other.center)
+                && equalOrNull(zoom, other.zoom) && equalOrNull(language, other.language)
+                && equalOrNull(contactName, other.contactName)
+                && equalOrNull(contactEmail, other.contactEmail)
+                && equalOrNull(offersBikeRental, other.offersBikeRental);
+    }
+
+    private static boolean equalOrNull(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
 }
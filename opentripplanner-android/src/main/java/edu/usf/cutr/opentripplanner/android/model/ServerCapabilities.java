@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.model;
+
+/**
+ * What was learned about an OTP server the last time its serverinfo was probed: the API
+ * version it speaks and the folder prefix of its REST endpoints.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerCapabilities {
+
+    private String baseURL;
+
+    private int apiVersion;
+
+    private String folderStructurePrefix;
+
+    private int serverVersionMajor;
+
+    private int serverVersionMinor;
+
+    private long dateChecked;
+
+    public ServerCapabilities() {
+    }
+
+    public ServerCapabilities(String baseURL, int apiVersion, String folderStructurePrefix,
+                              int serverVersionMajor, int serverVersionMinor, long dateChecked) {
+        this.baseURL = baseURL;
+        this.apiVersion = apiVersion;
+        this.folderStructurePrefix = folderStructurePrefix;
+        this.serverVersionMajor = serverVersionMajor;
+        this.serverVersionMinor = serverVersionMinor;
+        this.dateChecked = dateChecked;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public void setBaseURL(String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    public int getApiVersion() {
+        return apiVersion;
+    }
+
+    public void setApiVersion(int apiVersion) {
+        this.apiVersion = apiVersion;
+    }
+
+    public String getFolderStructurePrefix() {
+        return folderStructurePrefix;
+    }
+
+    public void setFolderStructurePrefix(String folderStructurePrefix) {
+        this.folderStructurePrefix = folderStructurePrefix;
+    }
+
+    public int getServerVersionMajor() {
+        return serverVersionMajor;
+    }
+
+    public void setServerVersionMajor(int serverVersionMajor) {
+        this.serverVersionMajor = serverVersionMajor;
+    }
+
+    public int getServerVersionMinor() {
+        return serverVersionMinor;
+    }
+
+    public void setServerVersionMinor(int serverVersionMinor) {
+        this.serverVersionMinor = serverVersionMinor;
+    }
+
+    public long getDateChecked() {
+        return dateChecked;
+    }
+
+    public void setDateChecked(long dateChecked) {
+        this.dateChecked = dateChecked;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.model;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+
+/**
+ * Round trip time and success rate measured for an OTP server by the health prober.
+ * <p>
+ * Both values are exponentially smoothed, so a single slow or failed probe does not
+ * discard a server that usually answers well.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerHealth {
+
+    private String baseURL;
+
+    // in milliseconds, only updated by successful probes
+    private double roundTripTime;
+
+    private double successRate;
+
+    private int samples;
+
+    private long dateProbed;
+
+    public ServerHealth() {
+    }
+
+    public ServerHealth(String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    /**
+     * Adds the result of a new probe to the smoothed values.
+     *
+     * @param success       true if the server answered
+     * @param roundTripTime time until the server answered, in milliseconds
+     * @param date          time of the probe
+     */
+    public void addSample(boolean success, long roundTripTime, long date) {
+        double alpha = OTPApp.SERVER_HEALTH_SMOOTHING_FACTOR;
+        if (samples == 0) {
+            this.successRate = success ? 1 : 0;
+            if (success) {
+                this.roundTripTime = roundTripTime;
+            }
+        } else {
+            this.successRate = alpha * (success ? 1 : 0) + (1 - alpha) * this.successRate;
+            if (success) {
+                this.roundTripTime = this.roundTripTime == 0 ? roundTripTime
+                        : alpha * roundTripTime + (1 - alpha) * this.roundTripTime;
+            }
+        }
+        samples++;
+        dateProbed = date;
+    }
+
+    public boolean isHealthy() {
+        return samples > 0 && successRate >= OTPApp.SERVER_HEALTH_MIN_SUCCESS_RATE
+                && roundTripTime > 0;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public void setBaseURL(String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    public double getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    public void setRoundTripTime(double roundTripTime) {
+        this.roundTripTime = roundTripTime;
+    }
+
+    public double getSuccessRate() {
+        return successRate;
+    }
+
+    public void setSuccessRate(double successRate) {
+        this.successRate = successRate;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    public long getDateProbed() {
+        return dateProbed;
+    }
+
+    public void setDateProbed(long dateProbed) {
+        this.dateProbed = dateProbed;
+    }
+}
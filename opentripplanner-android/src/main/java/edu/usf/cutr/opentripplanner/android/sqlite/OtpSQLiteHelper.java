@@ -16,7 +16,9 @@
 
 package edu.usf.cutr.opentripplanner.android.sqlite;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -53,9 +55,51 @@ public class OtpSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String COLUMN_OFFERS_BIKE_RENTAL = "OffersBikeRental";
 
+    public static final String COLUMN_LOWER_LEFT_LATITUDE = "LowerLeftLatitude";
+
+    public static final String COLUMN_LOWER_LEFT_LONGITUDE = "LowerLeftLongitude";
+
+    public static final String COLUMN_UPPER_RIGHT_LATITUDE = "UpperRightLatitude";
+
+    public static final String COLUMN_UPPER_RIGHT_LONGITUDE = "UpperRightLongitude";
+
+    public static final String COLUMN_CENTER_LATITUDE = "CenterLatitude";
+
+    public static final String COLUMN_CENTER_LONGITUDE = "CenterLongitude";
+
+    public static final String COLUMN_INITIAL_ZOOM = "InitialZoom";
+
+    public static final String TABLE_SERVER_CAPABILITIES = "ServerCapabilities";
+
+    public static final String COLUMN_API_VERSION = "ApiVersion";
+
+    public static final String COLUMN_FOLDER_STRUCTURE_PREFIX = "FolderStructurePrefix";
+
+    public static final String COLUMN_SERVER_VERSION_MAJOR = "ServerVersionMajor";
+
+    public static final String COLUMN_SERVER_VERSION_MINOR = "ServerVersionMinor";
+
+    public static final String COLUMN_DATE_CHECKED = "DateChecked";
+
+    public static final String TABLE_SERVER_HEALTH = "ServerHealth";
+
+    public static final String COLUMN_ROUND_TRIP_TIME = "RoundTripTime";
+
+    public static final String COLUMN_SUCCESS_RATE = "SuccessRate";
+
+    public static final String COLUMN_SAMPLES = "Samples";
+
+    public static final String COLUMN_DATE_PROBED = "DateProbed";
+
+    // R*Tree of the server bounds created by version 6, no longer used
+    private static final String TABLE_SERVER_BOUNDS = "ServerBounds";
+
     private static final String DATABASE_NAME = "OTPServers.db";
 
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 8;
+
+    // Oldest version that can be migrated keeping its data, older ones are recreated
+    private static final int MIN_MIGRATABLE_VERSION = 3;
 
     private static OtpSQLiteHelper mInstance = null;
 
@@ -72,7 +116,33 @@ public class OtpSQLiteHelper extends SQLiteOpenHelper {
             + COLUMN_CONTACT_EMAIL + " TEXT NOT NULL, "
             + COLUMN_CENTER + " TEXT NOT NULL, "
             + COLUMN_ZOOM + " TEXT NOT NULL, "
-            + COLUMN_OFFERS_BIKE_RENTAL + " INTEGER"
+            + COLUMN_OFFERS_BIKE_RENTAL + " INTEGER, "
+            + COLUMN_LOWER_LEFT_LATITUDE + " REAL, "
+            + COLUMN_LOWER_LEFT_LONGITUDE + " REAL, "
+            + COLUMN_UPPER_RIGHT_LATITUDE + " REAL, "
+            + COLUMN_UPPER_RIGHT_LONGITUDE + " REAL, "
+            + COLUMN_CENTER_LATITUDE + " REAL, "
+            + COLUMN_CENTER_LONGITUDE + " REAL, "
+            + COLUMN_INITIAL_ZOOM + " REAL"
+            + ");";
+
+    private static final String CAPABILITIES_TABLE_CREATE = "CREATE TABLE "
+            + TABLE_SERVER_CAPABILITIES + "( "
+            + COLUMN_BASEURL + " TEXT PRIMARY KEY, "
+            + COLUMN_API_VERSION + " INTEGER NOT NULL, "
+            + COLUMN_FOLDER_STRUCTURE_PREFIX + " TEXT NOT NULL, "
+            + COLUMN_SERVER_VERSION_MAJOR + " INTEGER, "
+            + COLUMN_SERVER_VERSION_MINOR + " INTEGER, "
+            + COLUMN_DATE_CHECKED + " INTEGER NOT NULL"
+            + ");";
+
+    private static final String HEALTH_TABLE_CREATE = "CREATE TABLE "
+            + TABLE_SERVER_HEALTH + "( "
+            + COLUMN_BASEURL + " TEXT PRIMARY KEY, "
+            + COLUMN_ROUND_TRIP_TIME + " REAL NOT NULL, "
+            + COLUMN_SUCCESS_RATE + " REAL NOT NULL, "
+            + COLUMN_SAMPLES + " INTEGER NOT NULL, "
+            + COLUMN_DATE_PROBED + " INTEGER NOT NULL"
             + ");";
 
     private OtpSQLiteHelper(Context context) {
@@ -95,15 +165,111 @@ public class OtpSQLiteHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(DATABASE_CREATE);
+        database.execSQL(CAPABILITIES_TABLE_CREATE);
+        database.execSQL(HEALTH_TABLE_CREATE);
     }
 
+    /**
+     * Applies in order the migration to each version after the current one, keeping the stored
+     * data. Runs inside the transaction opened by {@link SQLiteOpenHelper}, so if any step
+     * fails the database stays at the old version.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.w(OtpSQLiteHelper.class.getName(),
-                "Upgrading database from version " + oldVersion + " to "
-                        + newVersion + ", which will destroy all old data");
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVERS);
-        onCreate(db);
+        if (oldVersion < MIN_MIGRATABLE_VERSION) {
+            Log.w(OtpSQLiteHelper.class.getName(),
+                    "Upgrading database from version " + oldVersion + " to "
+                            + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVERS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVER_CAPABILITIES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVER_HEALTH);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVER_BOUNDS);
+            onCreate(db);
+            return;
+        }
+
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.i(OtpSQLiteHelper.class.getName(), "Migrating database to version " + version);
+            migrateTo(db, version);
+        }
+    }
+
+    private void migrateTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 4:
+                db.execSQL(CAPABILITIES_TABLE_CREATE);
+                break;
+            case 5:
+                db.execSQL(HEALTH_TABLE_CREATE);
+                break;
+            case 6:
+                // Created the R*Tree of the server bounds, dropped by version 8
+                break;
+            case 7:
+                addCoordinateColumns(db);
+                break;
+            case 8:
+                // The whole list is always loaded for the server chooser, so auto-detection
+                // looks the servers up in memory with ServerGridIndex instead of the R*Tree
+                db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_SERVER_BOUNDS + "Delete");
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SERVER_BOUNDS);
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    private void addCoordinateColumns(SQLiteDatabase db) {
+        String[] columns = {COLUMN_LOWER_LEFT_LATITUDE, COLUMN_LOWER_LEFT_LONGITUDE,
+                COLUMN_UPPER_RIGHT_LATITUDE, COLUMN_UPPER_RIGHT_LONGITUDE,
+                COLUMN_CENTER_LATITUDE, COLUMN_CENTER_LONGITUDE, COLUMN_INITIAL_ZOOM};
+        for (String column : columns) {
+            db.execSQL("ALTER TABLE " + TABLE_SERVERS + " ADD COLUMN " + column + " REAL");
+        }
+
+        Cursor cursor = db.query(TABLE_SERVERS,
+                new String[]{COLUMN_ID, COLUMN_BOUNDS, COLUMN_CENTER, COLUMN_ZOOM},
+                null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(0);
+            double[] bounds = parseCoordinates(cursor.getString(1), 4);
+            double[] center = parseCoordinates(cursor.getString(2), 2);
+            double[] zoom = parseCoordinates(cursor.getString(3), 1);
+            if (bounds == null || center == null || zoom == null) {
+                // Could not be loaded anyway, it will come back with the next refresh if fixed
+                db.delete(TABLE_SERVERS, COLUMN_ID + " = " + id, null);
+                continue;
+            }
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_LOWER_LEFT_LATITUDE, bounds[0]);
+            values.put(COLUMN_LOWER_LEFT_LONGITUDE, bounds[1]);
+            values.put(COLUMN_UPPER_RIGHT_LATITUDE, bounds[2]);
+            values.put(COLUMN_UPPER_RIGHT_LONGITUDE, bounds[3]);
+            values.put(COLUMN_CENTER_LATITUDE, center[0]);
+            values.put(COLUMN_CENTER_LONGITUDE, center[1]);
+            values.put(COLUMN_INITIAL_ZOOM, zoom[0]);
+            db.update(TABLE_SERVERS, values, COLUMN_ID + " = " + id, null);
+        }
+        cursor.close();
+    }
+
+    private static double[] parseCoordinates(String value, int count) {
+        if (value == null) {
+            return null;
+        }
+        String[] tokens = value.split(",");
+        if (tokens.length != count) {
+            return null;
+        }
+        double[] coordinates = new double[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                coordinates[i] = Double.parseDouble(tokens[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return coordinates;
     }
 
-}
\ No newline at end of file
+}
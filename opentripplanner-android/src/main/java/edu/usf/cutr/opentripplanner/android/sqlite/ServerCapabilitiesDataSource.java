@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.ServerCapabilities;
+
+/**
+ * Local data storage for the capabilities detected for each OTP server, keyed by base URL so
+ * they survive refreshes of the server list and also apply to custom servers.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerCapabilitiesDataSource {
+
+    private OtpSQLiteHelper dbHelper;
+
+    private static ServerCapabilitiesDataSource mInstance = null;
+
+    private String[] allColumns = {OtpSQLiteHelper.COLUMN_BASEURL,
+            OtpSQLiteHelper.COLUMN_API_VERSION,
+            OtpSQLiteHelper.COLUMN_FOLDER_STRUCTURE_PREFIX,
+            OtpSQLiteHelper.COLUMN_SERVER_VERSION_MAJOR,
+            OtpSQLiteHelper.COLUMN_SERVER_VERSION_MINOR,
+            OtpSQLiteHelper.COLUMN_DATE_CHECKED};
+
+    private ServerCapabilitiesDataSource(Context context) {
+        dbHelper = OtpSQLiteHelper.getInstance(context);
+    }
+
+    public static synchronized ServerCapabilitiesDataSource getInstance(Context ctx) {
+        if (mInstance == null) {
+            mInstance = new ServerCapabilitiesDataSource(ctx);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Returns the capabilities stored for the server if they were checked less than
+     * {@link OTPApp#EXPIRATION_DAYS_FOR_SERVER_CAPABILITIES} days ago.
+     *
+     * @param baseURL base URL of the server
+     * @return the stored capabilities, or null if there are none or they expired
+     */
+    public ServerCapabilities getCapabilities(String baseURL) {
+        ServerCapabilities capabilities = null;
+        long oldestValid = System.currentTimeMillis()
+                - TimeUnit.DAYS.toMillis(OTPApp.EXPIRATION_DAYS_FOR_SERVER_CAPABILITIES);
+
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            Cursor cursor = database.query(OtpSQLiteHelper.TABLE_SERVER_CAPABILITIES,
+                    allColumns, OtpSQLiteHelper.COLUMN_BASEURL + " = ? AND "
+                            + OtpSQLiteHelper.COLUMN_DATE_CHECKED + " > ?",
+                    new String[]{baseURL, Long.toString(oldestValid)}, null, null, null);
+            if (cursor.moveToFirst()) {
+                capabilities = cursorToCapabilities(cursor);
+            }
+            cursor.close();
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error reading capabilities of " + baseURL + ": " + e);
+        }
+
+        return capabilities;
+    }
+
+    /**
+     * Stores the capabilities of a server, replacing the ones stored before.
+     *
+     * @param capabilities capabilities just detected
+     */
+    public void saveCapabilities(ServerCapabilities capabilities) {
+        ContentValues values = new ContentValues();
+        values.put(OtpSQLiteHelper.COLUMN_BASEURL, capabilities.getBaseURL());
+        values.put(OtpSQLiteHelper.COLUMN_API_VERSION, capabilities.getApiVersion());
+        values.put(OtpSQLiteHelper.COLUMN_FOLDER_STRUCTURE_PREFIX,
+                capabilities.getFolderStructurePrefix());
+        values.put(OtpSQLiteHelper.COLUMN_SERVER_VERSION_MAJOR,
+                capabilities.getServerVersionMajor());
+        values.put(OtpSQLiteHelper.COLUMN_SERVER_VERSION_MINOR,
+                capabilities.getServerVersionMinor());
+        values.put(OtpSQLiteHelper.COLUMN_DATE_CHECKED, capabilities.getDateChecked());
+
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.insertWithOnConflict(OtpSQLiteHelper.TABLE_SERVER_CAPABILITIES, null,
+                    values, SQLiteDatabase.CONFLICT_REPLACE);
+            Log.d(OTPApp.TAG, "Stored capabilities of " + capabilities.getBaseURL());
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error storing capabilities of " + capabilities.getBaseURL()
+                    + ": " + e);
+        }
+    }
+
+    private ServerCapabilities cursorToCapabilities(Cursor cursor) {
+        ServerCapabilities capabilities = new ServerCapabilities();
+        capabilities.setBaseURL(cursor.getString(0));
+        capabilities.setApiVersion(cursor.getInt(1));
+        capabilities.setFolderStructurePrefix(cursor.getString(2));
+        capabilities.setServerVersionMajor(cursor.getInt(3));
+        capabilities.setServerVersionMinor(cursor.getInt(4));
+        capabilities.setDateChecked(cursor.getLong(5));
+        return capabilities;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.sqlite;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.util.ServerGridIndex;
+
+/**
+ * Immutable snapshot of the most recent list of servers stored from the OTP Server Directory.
+ * <p>
+ * The snapshot is read from the database the first time it is needed and then shared by all
+ * the components. It is only replaced, atomically, by {@link #reload(Context)} after a refresh
+ * commits a new version of the list, so readers never see a partial list. Servers in the
+ * snapshot are shared and must not be modified, copy them with {@link Server#Server(Server)}.
+ *
+ * @author Vreixo Gonzalez
+ */
+public final class ServerDirectory {
+
+    private static volatile ServerDirectory sCurrent;
+
+    private final Long date;
+
+    private final List<Server> servers;
+
+    private final Map<Long, Server> serversById;
+
+    private final ServerGridIndex index;
+
+    private ServerDirectory(List<Server> servers) {
+        this.servers = Collections.unmodifiableList(servers);
+        this.serversById = new HashMap<Long, Server>(servers.size());
+        for (Server server : servers) {
+            serversById.put(server.getId(), server);
+        }
+        this.date = servers.isEmpty() ? null : servers.get(0).getDate();
+        // The acceptable error is the sum of the distances to both edges, so a location can be
+        // up to half of it outside the bounds
+        this.index = new ServerGridIndex(servers, OTPApp.CHECK_BOUNDS_ACCEPTABLE_ERROR / 2.0);
+    }
+
+    /**
+     * @param context application context
+     * @return the current snapshot, read from the database if this is the first use
+     */
+    public static ServerDirectory getInstance(Context context) {
+        ServerDirectory directory = sCurrent;
+        if (directory == null) {
+            synchronized (ServerDirectory.class) {
+                directory = sCurrent;
+                if (directory == null) {
+                    directory = load(context);
+                    sCurrent = directory;
+                }
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Reads the list stored in the database and publishes it as the new snapshot.
+     * <p>
+     * Must be called after every change to the stored list is committed.
+     *
+     * @param context application context
+     * @return the new snapshot
+     */
+    public static synchronized ServerDirectory reload(Context context) {
+        ServerDirectory directory = load(context);
+        sCurrent = directory;
+        Log.d(OTPApp.TAG, "Server directory version " + directory.date + " with "
+                + directory.servers.size() + " servers");
+        return directory;
+    }
+
+    private static ServerDirectory load(Context context) {
+        ServersDataSource dataSource = ServersDataSource.getInstance(context);
+        List<Server> servers = new ArrayList<Server>();
+        try {
+            dataSource.open();
+            servers.addAll(dataSource.getMostRecentServers());
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error reading servers from SQLite: " + e);
+        } finally {
+            dataSource.close();
+        }
+        return new ServerDirectory(servers);
+    }
+
+    /**
+     * @return the servers of the list, which must not be modified
+     */
+    public List<Server> getServers() {
+        return servers;
+    }
+
+    /**
+     * @param id id of the server
+     * @return the server, or null if it is not in the list
+     */
+    public Server getServer(long id) {
+        return serversById.get(id);
+    }
+
+    /**
+     * @return spatial index over the bounds of the servers, with
+     * {@link OTPApp#CHECK_BOUNDS_ACCEPTABLE_ERROR} applied
+     */
+    public ServerGridIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return time when the list was last checked against the directory, or null if there is
+     * no list stored
+     */
+    public Long getDate() {
+        return date;
+    }
+
+    /**
+     * @return true if there is no list or it is older than
+     * {@link OTPApp#EXPIRATION_DAYS_FOR_SERVER_LIST} days
+     */
+    public boolean isExpired() {
+        return date == null || date < System.currentTimeMillis()
+                - TimeUnit.DAYS.toMillis(OTPApp.EXPIRATION_DAYS_FOR_SERVER_LIST);
+    }
+
+    public boolean isEmpty() {
+        return servers.isEmpty();
+    }
+}
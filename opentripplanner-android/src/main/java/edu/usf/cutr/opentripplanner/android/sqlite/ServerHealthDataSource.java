@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.ServerHealth;
+
+/**
+ * Local data storage for the health and latency measured for each OTP server, keyed by base
+ * URL.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerHealthDataSource {
+
+    private OtpSQLiteHelper dbHelper;
+
+    private static ServerHealthDataSource mInstance = null;
+
+    private String[] allColumns = {OtpSQLiteHelper.COLUMN_BASEURL,
+            OtpSQLiteHelper.COLUMN_ROUND_TRIP_TIME,
+            OtpSQLiteHelper.COLUMN_SUCCESS_RATE,
+            OtpSQLiteHelper.COLUMN_SAMPLES,
+            OtpSQLiteHelper.COLUMN_DATE_PROBED};
+
+    private ServerHealthDataSource(Context context) {
+        dbHelper = OtpSQLiteHelper.getInstance(context);
+    }
+
+    public static synchronized ServerHealthDataSource getInstance(Context ctx) {
+        if (mInstance == null) {
+            mInstance = new ServerHealthDataSource(ctx);
+        }
+        return mInstance;
+    }
+
+    /**
+     * @param baseURL base URL of the server
+     * @return the health stored for the server, or null if it was never probed
+     */
+    public ServerHealth getHealth(String baseURL) {
+        ServerHealth health = null;
+
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            Cursor cursor = database.query(OtpSQLiteHelper.TABLE_SERVER_HEALTH,
+                    allColumns, OtpSQLiteHelper.COLUMN_BASEURL + " = ?",
+                    new String[]{baseURL}, null, null, null);
+            if (cursor.moveToFirst()) {
+                health = cursorToHealth(cursor);
+            }
+            cursor.close();
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error reading health of " + baseURL + ": " + e);
+        }
+
+        return health;
+    }
+
+    public void saveHealth(ServerHealth health) {
+        ContentValues values = new ContentValues();
+        values.put(OtpSQLiteHelper.COLUMN_BASEURL, health.getBaseURL());
+        values.put(OtpSQLiteHelper.COLUMN_ROUND_TRIP_TIME, health.getRoundTripTime());
+        values.put(OtpSQLiteHelper.COLUMN_SUCCESS_RATE, health.getSuccessRate());
+        values.put(OtpSQLiteHelper.COLUMN_SAMPLES, health.getSamples());
+        values.put(OtpSQLiteHelper.COLUMN_DATE_PROBED, health.getDateProbed());
+
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            database.insertWithOnConflict(OtpSQLiteHelper.TABLE_SERVER_HEALTH, null,
+                    values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error storing health of " + health.getBaseURL() + ": " + e);
+        }
+    }
+
+    private ServerHealth cursorToHealth(Cursor cursor) {
+        ServerHealth health = new ServerHealth();
+        health.setBaseURL(cursor.getString(0));
+        health.setRoundTripTime(cursor.getDouble(1));
+        health.setSuccessRate(cursor.getDouble(2));
+        health.setSamples(cursor.getInt(3));
+        health.setDateProbed(cursor.getLong(4));
+        return health;
+    }
+}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -55,7 +56,33 @@ public class ServersDataSource {
             OtpSQLiteHelper.COLUMN_CONTACT_EMAIL,
             OtpSQLiteHelper.COLUMN_CENTER,
             OtpSQLiteHelper.COLUMN_ZOOM,
-            OtpSQLiteHelper.COLUMN_OFFERS_BIKE_RENTAL};
+            OtpSQLiteHelper.COLUMN_OFFERS_BIKE_RENTAL,
+            OtpSQLiteHelper.COLUMN_LOWER_LEFT_LATITUDE,
+            OtpSQLiteHelper.COLUMN_LOWER_LEFT_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_UPPER_RIGHT_LATITUDE,
+            OtpSQLiteHelper.COLUMN_UPPER_RIGHT_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_CENTER_LATITUDE,
+            OtpSQLiteHelper.COLUMN_CENTER_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_INITIAL_ZOOM};
+
+    // Columns written by saveServers(), in the order they are bound
+    private static final String[] WRITTEN_COLUMNS = {OtpSQLiteHelper.COLUMN_REGION,
+            OtpSQLiteHelper.COLUMN_BASEURL,
+            OtpSQLiteHelper.COLUMN_BOUNDS,
+            OtpSQLiteHelper.COLUMN_CENTER,
+            OtpSQLiteHelper.COLUMN_ZOOM,
+            OtpSQLiteHelper.COLUMN_LANGUAGE,
+            OtpSQLiteHelper.COLUMN_CONTACT_NAME,
+            OtpSQLiteHelper.COLUMN_CONTACT_EMAIL,
+            OtpSQLiteHelper.COLUMN_OFFERS_BIKE_RENTAL,
+            OtpSQLiteHelper.COLUMN_DATE,
+            OtpSQLiteHelper.COLUMN_LOWER_LEFT_LATITUDE,
+            OtpSQLiteHelper.COLUMN_LOWER_LEFT_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_UPPER_RIGHT_LATITUDE,
+            OtpSQLiteHelper.COLUMN_UPPER_RIGHT_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_CENTER_LATITUDE,
+            OtpSQLiteHelper.COLUMN_CENTER_LONGITUDE,
+            OtpSQLiteHelper.COLUMN_INITIAL_ZOOM};
 
     private ServersDataSource(Context context) {
         dbHelper = OtpSQLiteHelper.getInstance(context);
@@ -76,47 +103,139 @@ public class ServersDataSource {
         dbHelper.close();
     }
 
-    public Server createServer(Server s) {
+    /**
+     * Removes the servers stored by previous downloads of the directory, only the most recent
+     * list is kept.
+     */
+    public void deleteOutdatedServers() {
+        String whereClause = OtpSQLiteHelper.COLUMN_DATE + " < (SELECT max(" +
+                OtpSQLiteHelper.COLUMN_DATE + ") FROM " + OtpSQLiteHelper.TABLE_SERVERS + ")";
+        int deleted = database.delete(OtpSQLiteHelper.TABLE_SERVERS, whereClause, null);
+        Log.d(OTPApp.TAG, "Deleted " + deleted + " outdated servers");
+    }
+
+    /**
+     * Sets the date of all the stored servers, to mark the list as up to date.
+     *
+     * @param date time when the list was checked against the directory
+     */
+    public void touchServers(long date) {
         ContentValues values = new ContentValues();
+        values.put(OtpSQLiteHelper.COLUMN_DATE, date);
+        database.update(OtpSQLiteHelper.TABLE_SERVERS, values, null, null);
+    }
 
-        if ((s.getRegion() != null) && (s.getBaseURL() != null) && (s.getBounds() != null)
-                && (s.getCenter() != null) && (s.getZoom() != null) && (s.getLanguage() != null)
-                && (s.getContactName() != null) && (s.getContactEmail() != null)
-                && (s.getOffersBikeRental() != null)) {
-            if (s.getDate() != null) {
-                values.put(OtpSQLiteHelper.COLUMN_DATE, s.getDate());
-                Log.d(OTPApp.TAG,
-                        "Wrote '" + s.getRegion() + "' server date to SQLLite - " + s.getDate());
+    /**
+     * Writes the changes of a server list refresh in a single transaction, with precompiled
+     * statements and without reading the rows back.
+     * <p>
+     * All the stored servers get the date of the refresh, so the list is still returned
+     * entirely by {@link #getMostRecentServers()}. If any write fails nothing is changed.
+     *
+     * @param added   new servers
+     * @param changed servers with the id of the row they replace
+     * @param removed servers to delete
+     * @param date    time of the refresh
+     * @return number of rows written, or -1 if the transaction failed
+     */
+    public int saveServers(List<Server> added, List<Server> changed, List<Server> removed,
+                           long date) {
+        return saveServers(database, added, changed, removed, date);
+    }
+
+    static int saveServers(SQLiteDatabase database, List<Server> added, List<Server> changed,
+                           List<Server> removed, long date) {
+        int written = 0;
+        StringBuilder insertSql = new StringBuilder("INSERT INTO ")
+                .append(OtpSQLiteHelper.TABLE_SERVERS).append(" (");
+        StringBuilder updateSql = new StringBuilder("UPDATE ")
+                .append(OtpSQLiteHelper.TABLE_SERVERS).append(" SET ");
+        for (int i = 0; i < WRITTEN_COLUMNS.length; i++) {
+            String separator = i == 0 ? "" : ", ";
+            insertSql.append(separator).append(WRITTEN_COLUMNS[i]);
+            updateSql.append(separator).append(WRITTEN_COLUMNS[i]).append(" = ?");
+        }
+        insertSql.append(") VALUES (?");
+        for (int i = 1; i < WRITTEN_COLUMNS.length; i++) {
+            insertSql.append(", ?");
+        }
+        insertSql.append(")");
+        updateSql.append(" WHERE ").append(OtpSQLiteHelper.COLUMN_ID).append(" = ?");
+
+        SQLiteStatement insert = database.compileStatement(insertSql.toString());
+        SQLiteStatement update = database.compileStatement(updateSql.toString());
+        SQLiteStatement delete = database.compileStatement("DELETE FROM "
+                + OtpSQLiteHelper.TABLE_SERVERS + " WHERE " + OtpSQLiteHelper.COLUMN_ID + " = ?");
+
+        database.beginTransaction();
+        try {
+            for (Server s : removed) {
+                delete.bindLong(1, s.getId());
+                delete.execute();
+                written++;
             }
-            values.put(OtpSQLiteHelper.COLUMN_REGION, s.getRegion());
-            values.put(OtpSQLiteHelper.COLUMN_BASEURL, s.getBaseURL());
-            values.put(OtpSQLiteHelper.COLUMN_BOUNDS, s.getBounds());
-            values.put(OtpSQLiteHelper.COLUMN_CENTER, s.getCenter());
-            values.put(OtpSQLiteHelper.COLUMN_ZOOM, s.getZoom());
-            values.put(OtpSQLiteHelper.COLUMN_LANGUAGE, s.getLanguage());
-            values.put(OtpSQLiteHelper.COLUMN_CONTACT_NAME, s.getContactName());
-            values.put(OtpSQLiteHelper.COLUMN_CONTACT_EMAIL, s.getContactEmail());
-            values.put(OtpSQLiteHelper.COLUMN_OFFERS_BIKE_RENTAL, s.getOffersBikeRental());
-
-            long insertId = database.insert(OtpSQLiteHelper.TABLE_SERVERS, null,
-                    values);
-            Cursor cursor = database.query(OtpSQLiteHelper.TABLE_SERVERS,
-                    allColumns, OtpSQLiteHelper.COLUMN_ID + " = " + insertId, null,
-                    null, null, null);
-            cursor.moveToFirst();
-            Server newServer = cursorToServer(cursor);
-            cursor.close();
-            return newServer;
-        } else {
-            return null;
+            for (Server s : changed) {
+                if (bindServer(update, s, date)) {
+                    update.bindLong(WRITTEN_COLUMNS.length + 1, s.getId());
+                    update.execute();
+                    written++;
+                }
+            }
+            for (Server s : added) {
+                if (bindServer(insert, s, date)) {
+                    insert.executeInsert();
+                    written++;
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put(OtpSQLiteHelper.COLUMN_DATE, date);
+            database.update(OtpSQLiteHelper.TABLE_SERVERS, values, null, null);
+            database.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(OTPApp.TAG, "Error writing server list to SQLite: " + e);
+            written = -1;
+        } finally {
+            database.endTransaction();
+            insert.close();
+            update.close();
+            delete.close();
+        }
+        return written;
+    }
+
+    private static boolean bindServer(SQLiteStatement statement, Server s, long date) {
+        if (!isComplete(s)) {
+            Log.e(OTPApp.TAG, "Some server fields are incorrect, server '" + s.getRegion()
+                    + "' not saved");
+            return false;
         }
+        statement.clearBindings();
+        statement.bindString(1, s.getRegion());
+        statement.bindString(2, s.getBaseURL());
+        statement.bindString(3, s.getBounds());
+        statement.bindString(4, s.getCenter());
+        statement.bindString(5, s.getZoom());
+        statement.bindString(6, s.getLanguage());
+        statement.bindString(7, s.getContactName());
+        statement.bindString(8, s.getContactEmail());
+        statement.bindLong(9, s.getOffersBikeRental() ? 1 : 0);
+        statement.bindLong(10, date);
+        statement.bindDouble(11, s.getLowerLeftLatitude());
+        statement.bindDouble(12, s.getLowerLeftLongitude());
+        statement.bindDouble(13, s.getUpperRightLatitude());
+        statement.bindDouble(14, s.getUpperRightLongitude());
+        statement.bindDouble(15, s.getCenterLatitude());
+        statement.bindDouble(16, s.getCenterLongitude());
+        statement.bindDouble(17, s.getInitialZoom());
+        return true;
     }
 
-    public void deleteServer(Server server) {
-        long id = server.getId();
-        Log.d(OTPApp.TAG, "Server deleted with id: " + id);
-        database.delete(OtpSQLiteHelper.TABLE_SERVERS, OtpSQLiteHelper.COLUMN_ID
-                + " = " + id, null);
+    private static boolean isComplete(Server s) {
+        return (s.getRegion() != null) && (s.getBaseURL() != null) && (s.getBounds() != null)
+                && (s.getCenter() != null) && (s.getZoom() != null) && (s.getLanguage() != null)
+                && (s.getContactName() != null) && (s.getContactEmail() != null)
+                && (s.getOffersBikeRental() != null) && s.areBoundsSet() && s.isCenterSet()
+                && s.isZoomSet();
     }
 
     public Server getServer(Long id) {
@@ -199,12 +318,13 @@ public class ServersDataSource {
         server.setDate(addedOn);
         server.setRegion(cursor.getString(2));
         server.setBaseURL(cursor.getString(3));
-        server.setBounds(cursor.getString(4));
+        server.setBounds(cursor.getString(4), cursor.getDouble(11), cursor.getDouble(12),
+                cursor.getDouble(13), cursor.getDouble(14));
         server.setLanguage(cursor.getString(5));
         server.setContactName(cursor.getString(6));
         server.setContactEmail(cursor.getString(7));
-        server.setCenter(cursor.getString(8));
-        server.setZoom(cursor.getString(9));
+        server.setCenter(cursor.getString(8), cursor.getDouble(15), cursor.getDouble(16));
+        server.setZoom(cursor.getString(9), cursor.getFloat(17));
         server.setOffersBikeRental(cursor.getInt(10)>0);
 
         Log.d(OTPApp.TAG,
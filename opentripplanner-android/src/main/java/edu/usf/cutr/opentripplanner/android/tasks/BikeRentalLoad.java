@@ -32,12 +32,13 @@ import org.opentripplanner.routing.bike_rental.BikeRentalStationList;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.List;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.BikeRentalLoadCompleteListener;
+import edu.usf.cutr.opentripplanner.android.util.BikeRentalClusters;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
 
 /**
  * @author Vreixo González
@@ -55,6 +56,10 @@ public class BikeRentalLoad extends AsyncTask<String, Integer, BikeRentalStation
 
     private boolean firstLoad;
 
+    private boolean notModified = false;
+
+    private BikeRentalClusters clusters;
+
     public BikeRentalLoad(Context context, boolean firstLoad,
                           BikeRentalLoadCompleteListener callback) {
         this.context = context;
@@ -73,41 +78,51 @@ public class BikeRentalLoad extends AsyncTask<String, Integer, BikeRentalStation
         String u = reqs[0] + prefix + OTPApp.BIKE_RENTAL_LOCATION;
         Log.d(OTPApp.TAG, "URL: " + u);
 
+        OtpHttpClient httpClient = OtpHttpClient.getInstance(reqs[0]);
         HttpURLConnection urlConnection = null;
+        boolean reusable = false;
         BikeRentalStationList bikeRentalStationList = null;
 
         try {
-            URL url = new URL(u);
             if (mapper == null) {
                 mapper = new ObjectMapper();
             }
             mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestProperty("Accept", "application/json");
-            urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
-            bikeRentalStationList = mapper.readValue(urlConnection.getInputStream(), BikeRentalStationList.class);
+            // Updates are conditional, first load always needs the full list
+            urlConnection = httpClient.openConnection(u, !firstLoad);
+            if (!firstLoad && httpClient.isNotModified(urlConnection)) {
+                notModified = true;
+            } else {
+                bikeRentalStationList = mapper.readValue(httpClient.getInputStream(urlConnection), BikeRentalStationList.class);
+                httpClient.storeValidators(urlConnection, null);
+                if (bikeRentalStationList != null && bikeRentalStationList.stations != null) {
+                    clusters = BikeRentalClusters.build(bikeRentalStationList.stations,
+                            OTPApp.BIKE_RENTAL_CLUSTER_CELL_SIZE,
+                            OTPApp.BIKE_RENTAL_CLUSTER_MAX_ZOOM);
+                }
+            }
+            reusable = true;
         } catch (IOException e) {
             Log.e(OTPApp.TAG, "Error fetching JSON or XML: " + e);
             e.printStackTrace();
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            httpClient.release(urlConnection, reusable);
         }
         return bikeRentalStationList;
     }
 
     protected void onPostExecute(BikeRentalStationList bikeRentalStationList) {
-        if (bikeRentalStationList != null) {
+        if (notModified) {
+            Log.d(OTPApp.TAG, "Bike rental stations not modified, nothing to update");
+        } else if (bikeRentalStationList != null) {
             if (firstLoad){
                 Toast.makeText(context,
                         context.getResources().getString(R.string.toast_bike_rental_load_request_successful),
                         Toast.LENGTH_SHORT).show();
-                callback.onBikeRentalStationListLoad(bikeRentalStationList);
+                callback.onBikeRentalStationListLoad(bikeRentalStationList, clusters);
             }
             else{
-                callback.onBikeRentalStationListUpdate(bikeRentalStationList);
+                callback.onBikeRentalStationListUpdate(bikeRentalStationList, clusters);
             }
         } else {
             Toast.makeText(context, context.getResources().getString(R.string.toast_bike_rental_load_request_error),
@@ -32,11 +32,13 @@ import android.widget.Toast;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.Callable;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.MetadataRequestCompleteListener;
+import edu.usf.cutr.opentripplanner.android.util.InFlightRequests;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
 
 /**
  * @author Khoa Tran
@@ -54,6 +56,9 @@ public class MetadataRequest extends AsyncTask<String, Integer, GraphMetadata> {
 
     private static ObjectMapper mapper = null;
 
+    private static final InFlightRequests<GraphMetadata> inFlightMetadata
+            = new InFlightRequests<GraphMetadata>("metadata");
+
     public MetadataRequest(WeakReference<Activity> activity, Context context,
             MetadataRequestCompleteListener callback) {
         this.activity = activity;
@@ -81,30 +86,43 @@ public class MetadataRequest extends AsyncTask<String, Integer, GraphMetadata> {
         String prefix = PreferenceManager.getDefaultSharedPreferences(context)
                 .getString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX
                         , OTPApp.FOLDER_STRUCTURE_PREFIX_NEW);
-        String u = reqs[0] + prefix + OTPApp.METADATA_LOCATION;
+        final String baseURL = reqs[0];
+        final String u = baseURL + prefix + OTPApp.METADATA_LOCATION;
+
+        return inFlightMetadata.execute(u, new Callable<GraphMetadata>() {
+            @Override
+            public GraphMetadata call() {
+                return requestMetadata(baseURL, u);
+            }
+        });
+    }
+
+    private GraphMetadata requestMetadata(String baseURL, String u) {
         Log.d(OTPApp.TAG, "URL: " + u);
 
+        OtpHttpClient httpClient = OtpHttpClient.getInstance(baseURL);
         HttpURLConnection urlConnection = null;
+        boolean reusable = false;
         GraphMetadata metadata = null;
 
         try {
-            URL url = new URL(u);
             if (mapper == null) {
                 mapper = new ObjectMapper();
             }
             mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestProperty("Accept", "application/json");
-            urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
-            metadata = mapper.readValue(urlConnection.getInputStream(), GraphMetadata.class);
+            urlConnection = httpClient.openConnection(u, true);
+            if (httpClient.isNotModified(urlConnection)) {
+                metadata = (GraphMetadata) httpClient.getLastValue(u);
+            } else {
+                metadata = mapper.readValue(httpClient.getInputStream(urlConnection), GraphMetadata.class);
+                httpClient.storeValidators(urlConnection, metadata);
+            }
+            reusable = true;
         } catch (IOException e) {
             Log.e(OTPApp.TAG, "Error fetching JSON or XML: " + e);
             e.printStackTrace();
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            httpClient.release(urlConnection, reusable);
         }
         return metadata;
     }
@@ -25,11 +25,14 @@ import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.OTPGeocodingListener;
 import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.util.InFlightRequests;
 import edu.usf.cutr.opentripplanner.android.util.LocationUtil;
 import edu.usf.cutr.opentripplanner.android.util.CustomAddress;
 
@@ -39,6 +42,9 @@ import edu.usf.cutr.opentripplanner.android.util.CustomAddress;
 
 public class OTPGeocoding extends AsyncTask<String, Integer, Long> {
 
+    private static final InFlightRequests<ArrayList<CustomAddress>> inFlightGeocodings
+            = new InFlightRequests<ArrayList<CustomAddress>>("geocoding");
+
     private WeakReference<Activity> activity;
 
     private Context context;
@@ -68,9 +74,24 @@ public class OTPGeocoding extends AsyncTask<String, Integer, Long> {
         // Do nothing
     }
 
-    protected Long doInBackground(String... reqs) {
+    protected Long doInBackground(final String... reqs) {
         long count = reqs.length;
-        addressesReturn = LocationUtil.processGeocoding(context, selectedServer, geocodingForMarker, reqs);
+        String key = (selectedServer != null ? selectedServer.getBaseURL() : "") + "|"
+                + geocodingForMarker + "|" + Arrays.toString(reqs);
+        ArrayList<CustomAddress> addresses = inFlightGeocodings.execute(key,
+                new Callable<ArrayList<CustomAddress>>() {
+                    @Override
+                    public ArrayList<CustomAddress> call() {
+                        return LocationUtil.processGeocoding(context, selectedServer,
+                                geocodingForMarker, reqs);
+                    }
+                });
+        // Every caller gets its own list, the result may be shared by coalesced requests
+        if (addresses != null) {
+            addressesReturn = new ArrayList<CustomAddress>(addresses);
+        } else {
+            addressesReturn = null;
+        }
         return count;
     }
 
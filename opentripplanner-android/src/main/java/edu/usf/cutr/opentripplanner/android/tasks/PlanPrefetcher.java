@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.tasks;
+
+import org.opentripplanner.api.ws.Request;
+import org.opentripplanner.api.ws.Response;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.util.JacksonConfig;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
+
+/**
+ * Requests a trip plan speculatively, before the user asks for it, so it is already available
+ * or in flight when {@link TripRequest} runs.
+ * <p>
+ * Only the last speculation is kept. {@link TripRequest} claims it with the key of the plan it
+ * needs, see {@link TripRequest#buildPlanKey}: if the key matches, the speculative response is
+ * used, waiting for it if it is still in flight, otherwise some input changed and the
+ * speculative response is dropped. Starting a new speculation also drops the previous one.
+ * A speculation dropped while in flight is aborted, closing its connection, so changing the
+ * options quickly does not pile up requests.
+ * <p>
+ * Dropped responses are counted as wasted, with the bytes they took from the network.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class PlanPrefetcher {
+
+    private static Speculation sCurrent;
+
+    private static int sStarted;
+
+    private static int sHits;
+
+    private static int sWasted;
+
+    private static long sWastedBytes;
+
+    private PlanPrefetcher() {
+    }
+
+    /**
+     * Starts a speculative plan request in a background thread.
+     *
+     * @param context        application context
+     * @param selectedServer server that will be used for the plan
+     * @param request        request built with the current inputs
+     * @param departNow      true if the date and time of the request are the current ones
+     */
+    public static void start(Context context, Server selectedServer, Request request,
+                             boolean departNow) {
+        if (selectedServer == null) {
+            return;
+        }
+        String prefix = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX
+                        , OTPApp.FOLDER_STRUCTURE_PREFIX_NEW);
+        final String baseURL = selectedServer.getBaseURL();
+        final String u = TripRequest.buildPlanURL(request, prefix, baseURL);
+        final String key = TripRequest.buildPlanKey(request, prefix, baseURL, departNow);
+
+        final Speculation speculation = new Speculation(u, key, departNow);
+        synchronized (PlanPrefetcher.class) {
+            if (sCurrent != null) {
+                if (sCurrent.key.equals(key)) {
+                    return;
+                }
+                drop(sCurrent);
+            }
+            sCurrent = speculation;
+            sStarted++;
+        }
+
+        Log.d(OTPApp.TAG, "Speculative plan URL: " + u);
+        new Thread() {
+            public void run() {
+                Response response = TripRequest.inFlightPlans.execute(key,
+                        new Callable<Response>() {
+                            @Override
+                            public Response call() {
+                                return requestPlan(speculation, baseURL);
+                            }
+                        });
+                complete(speculation, response);
+            }
+        }.start();
+    }
+
+    /**
+     * Takes the current speculation if it was started for this plan key.
+     *
+     * @param key key of the plan needed by the user
+     * @return the speculative response, waiting for it if it is still in flight, or null if
+     * there is none for this key
+     */
+    public static synchronized Response claim(String key) {
+        Speculation speculation = sCurrent;
+        if (speculation == null) {
+            return null;
+        }
+        sCurrent = null;
+        // A plan departing now is only valid for a while after it was requested
+        if (speculation.key.equals(key) && (!speculation.departNow
+                || System.currentTimeMillis() - speculation.startedAt
+                <= OTPApp.PLAN_CACHE_NOW_WINDOW)) {
+            speculation.claimed = true;
+            sHits++;
+            logMetrics();
+            try {
+                while (!speculation.done) {
+                    PlanPrefetcher.class.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return speculation.response;
+        }
+        drop(speculation);
+        return null;
+    }
+
+    /**
+     * Drops the current speculation, if any.
+     */
+    public static synchronized void discard() {
+        if (sCurrent != null) {
+            drop(sCurrent);
+            sCurrent = null;
+        }
+    }
+
+    private static synchronized void complete(Speculation speculation, Response response) {
+        speculation.response = response;
+        speculation.done = true;
+        PlanPrefetcher.class.notifyAll();
+        if (speculation != sCurrent && !speculation.claimed) {
+            countWasted(speculation);
+        }
+    }
+
+    private static void drop(Speculation speculation) {
+        // Unfinished speculations are counted when they complete
+        if (speculation.done) {
+            countWasted(speculation);
+        } else {
+            abort(speculation);
+        }
+    }
+
+    /**
+     * Closes the connection of a speculation in flight, so the download and the parse stop at
+     * once, as {@link TripRequest#supersede()} does.
+     */
+    private static void abort(Speculation speculation) {
+        speculation.dropped = true;
+        final HttpURLConnection connection = speculation.connection;
+        if (connection != null) {
+            TripRequest.inFlightPlans.abandon(speculation.key);
+            // Closing the socket may block, keep it out of the caller thread
+            new Thread() {
+                public void run() {
+                    connection.disconnect();
+                }
+            }.start();
+        }
+    }
+
+    private static void countWasted(Speculation speculation) {
+        sWasted++;
+        sWastedBytes += speculation.bytes;
+        logMetrics();
+    }
+
+    private static void logMetrics() {
+        Log.d(OTPApp.TAG, "Speculative plans - started: " + sStarted + ", hits: " + sHits
+                + ", wasted: " + sWasted + " (" + sWastedBytes + " bytes)");
+    }
+
+    private static Response requestPlan(Speculation speculation, String baseURL) {
+        OtpHttpClient httpClient = OtpHttpClient.getInstance(baseURL);
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        boolean reusable = false;
+        Response plan = null;
+
+        try {
+            urlConnection = httpClient.openConnection(speculation.url);
+            speculation.connection = urlConnection;
+            if (speculation.dropped) {
+                return null;
+            }
+            in = httpClient.getInputStream(urlConnection);
+            plan = JacksonConfig.getObjectReaderInstance().readValue(in);
+            reusable = true;
+        } catch (IOException e) {
+            if (speculation.dropped) {
+                // The connection was closed by abort()
+                Log.d(OTPApp.TAG, "Speculative plan aborted: " + e);
+            } else {
+                Log.e(OTPApp.TAG, "Error fetching speculative plan: " + e);
+            }
+        } finally {
+            if (in != null) {
+                speculation.bytes = httpClient.getReceivedBytes(in);
+            }
+            speculation.connection = null;
+            httpClient.release(urlConnection, reusable);
+        }
+        return plan;
+    }
+
+    public static synchronized int getStarted() {
+        return sStarted;
+    }
+
+    public static synchronized int getHits() {
+        return sHits;
+    }
+
+    public static synchronized int getWasted() {
+        return sWasted;
+    }
+
+    public static synchronized long getWastedBytes() {
+        return sWastedBytes;
+    }
+
+    private static class Speculation {
+
+        private final String url;
+
+        private final String key;
+
+        private final boolean departNow;
+
+        private final long startedAt = System.currentTimeMillis();
+
+        private volatile long bytes;
+
+        // Connection being read, so the speculation can be aborted from another thread
+        private volatile HttpURLConnection connection;
+
+        private volatile boolean dropped;
+
+        private Response response;
+
+        private boolean done;
+
+        private boolean claimed;
+
+        private Speculation(String url, String key, boolean departNow) {
+            this.url = url;
+            this.key = key;
+            this.departNow = departNow;
+        }
+    }
+}
@@ -32,15 +32,26 @@ import org.opentripplanner.index.model.TripTimeShort;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.RequestTimesForTripsCompleteListener;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
 
 /**
  * @author Vreixo González
@@ -66,52 +77,106 @@ public class RequestTimesForTrips extends AsyncTask<String, Integer, HashMap<Str
     }
 
     protected HashMap<String, List<TripTimeShort>> doInBackground(String... reqs) {
-        String prefix = PreferenceManager.getDefaultSharedPreferences(context)
+        final String prefix = PreferenceManager.getDefaultSharedPreferences(context)
                 .getString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX
                         , OTPApp.FOLDER_STRUCTURE_PREFIX_NEW);
         if (reqs.length <= 1){
             return null;
         }
+        final String baseURL = reqs[0];
+        Set<String> tripIds = new LinkedHashSet<String>(Arrays.asList(reqs).subList(1, reqs.length));
         HashMap<String, List<TripTimeShort>> timesUpdatesForTrips = new HashMap<String,
-                List<TripTimeShort>>(reqs.length - 1);
+                List<TripTimeShort>>(tripIds.size());
 
-        HttpURLConnection urlConnection = null;
-        List<TripTimeShort> updatedTripTimesList = null;
+        if (mapper == null) {
+            mapper = new ObjectMapper();
+        }
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        final JavaType tripTimesListType = mapper.getTypeFactory()
+                .constructCollectionType(List.class, TripTimeShort.class);
+
+        List<Callable<List<TripTimeShort>>> requests
+                = new ArrayList<Callable<List<TripTimeShort>>>(tripIds.size());
+        for (final String tripId : tripIds) {
+            requests.add(new Callable<List<TripTimeShort>>() {
+                @Override
+                public List<TripTimeShort> call() {
+                    return requestTimesForTrip(baseURL, prefix, tripId, tripTimesListType);
+                }
+            });
+        }
 
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(tripIds.size(), OTPApp.TRIP_TIMES_UPDATES_MAX_CONCURRENT_REQUESTS));
         try {
-            if (mapper == null) {
-                mapper = new ObjectMapper();
-            }
-            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            JavaType bikeRentalStationListType = mapper.getTypeFactory().constructCollectionType(List.class, TripTimeShort.class);
-            for (String tripId : reqs) {
-                if (tripId.equals(reqs[0])) {
+            // Requests not finished before the deadline are cancelled, the rest are kept
+            List<Future<List<TripTimeShort>>> results = executor.invokeAll(requests,
+                    OTPApp.TRIP_TIMES_UPDATES_DEADLINE, TimeUnit.MILLISECONDS);
+            Iterator<String> tripIdsIterator = tripIds.iterator();
+            for (Future<List<TripTimeShort>> result : results) {
+                String tripId = tripIdsIterator.next();
+                if (result.isCancelled()) {
+                    Log.w(OTPApp.TAG, "Times for trip " + tripId + " not received before deadline");
                     continue;
                 }
-                String encodedTripId = URLEncoder.encode(tripId, Charset.defaultCharset().name());
-                String u = reqs[0] + prefix + OTPApp.TRIP_TIMES_UPDATES_LOCATION_BEFORE_ID
-                        + encodedTripId + OTPApp.TRIP_TIMES_UPDATES_LOCATION_AFTER_ID;
-                URL url = new URL(u);
-                Log.d(OTPApp.TAG, "URL: " + u);
-                urlConnection = (HttpURLConnection) url.openConnection();
-                urlConnection.setRequestProperty("Accept", "application/json");
-                urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-                urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
-                updatedTripTimesList = mapper.readValue(urlConnection.getInputStream(), bikeRentalStationListType);
-                timesUpdatesForTrips.put(tripId, updatedTripTimesList);
+                List<TripTimeShort> updatedTripTimesList;
+                try {
+                    updatedTripTimesList = result.get();
+                } catch (ExecutionException e) {
+                    // Only this trip is lost, the times of the others are still used
+                    Log.e(OTPApp.TAG, "Error requesting times for trip " + tripId + ": "
+                            + e.getCause());
+                    continue;
+                }
+                if (updatedTripTimesList != null) {
+                    timesUpdatesForTrips.put(tripId, updatedTripTimesList);
+                }
             }
-        } catch (IOException e) {
-            Log.e(OTPApp.TAG, "Error fetching JSON or XML: " + e);
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Log.e(OTPApp.TAG, "Interrupted while requesting times for trips: " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            executor.shutdownNow();
         }
 
+        Log.d(OTPApp.TAG, "Received times for " + timesUpdatesForTrips.size() + " of "
+                + tripIds.size() + " trips");
         return timesUpdatesForTrips;
     }
 
+    /**
+     * Requests the stop times of one trip.
+     *
+     * @param baseURL           base URL of the server
+     * @param prefix            folder structure prefix of the server API
+     * @param tripId            id of the trip, including agency id
+     * @param tripTimesListType type to parse the response to
+     * @return the list of times for each stop of the trip, null if there was an error
+     */
+    private List<TripTimeShort> requestTimesForTrip(String baseURL, String prefix, String tripId,
+                                                    JavaType tripTimesListType) {
+        OtpHttpClient httpClient = OtpHttpClient.getInstance(baseURL);
+        HttpURLConnection urlConnection = null;
+        boolean reusable = false;
+        List<TripTimeShort> updatedTripTimesList = null;
+
+        try {
+            String encodedTripId = URLEncoder.encode(tripId, Charset.defaultCharset().name());
+            String u = baseURL + prefix + OTPApp.TRIP_TIMES_UPDATES_LOCATION_BEFORE_ID
+                    + encodedTripId + OTPApp.TRIP_TIMES_UPDATES_LOCATION_AFTER_ID;
+            Log.d(OTPApp.TAG, "URL: " + u);
+            urlConnection = httpClient.openConnection(u);
+            updatedTripTimesList = mapper.readValue(httpClient.getInputStream(urlConnection),
+                    tripTimesListType);
+            reusable = true;
+        } catch (IOException e) {
+            Log.e(OTPApp.TAG, "Error fetching JSON or XML for trip " + tripId + ": " + e);
+        } finally {
+            httpClient.release(urlConnection, reusable);
+        }
+
+        return updatedTripTimesList;
+    }
+
     protected void onPostExecute(HashMap<String, List<TripTimeShort>> timesUpdatesForTrips) {
         if (timesUpdatesForTrips != null) {
             callback.onUpdateTripTimesComplete(timesUpdatesForTrips);
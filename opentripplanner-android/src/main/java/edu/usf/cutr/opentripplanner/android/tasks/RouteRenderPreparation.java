@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.tasks;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import org.opentripplanner.api.model.Leg;
+import org.opentripplanner.routing.core.TraverseMode;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.R;
+import edu.usf.cutr.opentripplanner.android.listeners.RouteRenderPreparationCompleteListener;
+import edu.usf.cutr.opentripplanner.android.model.RouteRenderBundle;
+import edu.usf.cutr.opentripplanner.android.util.ConversionUtils;
+import edu.usf.cutr.opentripplanner.android.util.DirectionsGenerator;
+import edu.usf.cutr.opentripplanner.android.util.PolylineBuffer;
+import edu.usf.cutr.opentripplanner.android.util.PolylineLevelsOfDetail;
+import edu.usf.cutr.opentripplanner.android.util.TripInfo;
+
+/**
+ * Decodes the geometry of the legs of an itinerary and builds the markers, lines and bounds to
+ * show it on the map, so the UI thread only has to add them.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class RouteRenderPreparation extends AsyncTask<Void, Void, RouteRenderBundle> {
+
+    private Context context;
+
+    private List<Leg> itinerary;
+
+    private int animateCamera;
+
+    private RouteRenderPreparationCompleteListener callback;
+
+    /**
+     * @param context       application context
+     * @param itinerary     legs to show, the list is copied so the caller can reuse it
+     * @param animateCamera type of camera animation requested, returned in the bundle
+     * @param callback      listener notified on the UI thread with the bundle
+     */
+    public RouteRenderPreparation(Context context, List<Leg> itinerary, int animateCamera,
+            RouteRenderPreparationCompleteListener callback) {
+        this.context = context;
+        this.itinerary = new ArrayList<Leg>(itinerary);
+        this.animateCamera = animateCamera;
+        this.callback = callback;
+    }
+
+    protected RouteRenderBundle doInBackground(Void... params) {
+        Resources resources = context.getResources();
+        float scaleFactor = resources.getFraction(R.fraction.scaleFactor, 1, 1);
+
+        List<RouteRenderBundle.LegRender> legs = new ArrayList<RouteRenderBundle.LegRender>(
+                itinerary.size());
+        LatLngBounds.Builder boundsCreator = LatLngBounds.builder();
+        PolylineBuffer points = new PolylineBuffer();
+
+        int stepIndex = 0;
+
+        for (Leg leg : itinerary) {
+            if (isCancelled()) {
+                return null;
+            }
+            stepIndex++;
+
+            points.decode(leg.legGeometry.getPoints());
+
+            if (!points.isEmpty()) {
+                MarkerOptions modeMarkerOption = new MarkerOptions()
+                        .position(points.getLatLng(0))
+                        .title(generateModeMarkerTitle(context, leg, stepIndex));
+                boolean transit = TraverseMode.valueOf(leg.mode).isTransit();
+                TripInfo tripInfo = new TripInfo(transit && leg.realTime, leg.tripId,
+                        generateModeMarkerSnippet(context, leg), leg.departureDelay);
+                if (transit) {
+                    //because on transit two step-by-step indications are generated (get on / get off)
+                    stepIndex++;
+                }
+
+                PolylineOptions options = new PolylineOptions()
+                        .width(5 * scaleFactor)
+                        .color(OTPApp.COLOR_ROUTE_LINE);
+                legs.add(new RouteRenderBundle.LegRender(modeMarkerOption, getPathIcon(leg.mode),
+                        tripInfo, transit, options, new PolylineLevelsOfDetail(points)));
+                boundsCreator.include(points.getSouthwest());
+                boundsCreator.include(points.getNortheast());
+            }
+        }
+
+        return new RouteRenderBundle(legs, legs.isEmpty() ? null : boundsCreator.build(),
+                animateCamera);
+    }
+
+    protected void onPostExecute(RouteRenderBundle bundle) {
+        if (bundle != null) {
+            callback.onRouteRenderPrepared(bundle);
+        }
+    }
+
+    private static String generateModeMarkerTitle(Context context, Leg leg, int stepIndex) {
+        Resources resources = context.getResources();
+        TraverseMode traverseMode = TraverseMode.valueOf(leg.mode);
+        String title = "";
+
+        if (traverseMode.isTransit()) {
+            title = stepIndex + ". " + ConversionUtils
+                    .getRouteShortNameSafe(leg.routeShortName, leg.routeLongName, context)
+                    + " " + resources.getString(R.string.map_markers_connector_before_stop) + " "
+                    + DirectionsGenerator.getLocalizedStreetName(leg.from.name, resources);
+        }
+        else{
+            if (traverseMode.equals(TraverseMode.WALK)) {
+                title = stepIndex + ". " + resources
+                        .getString(R.string.map_markers_mode_walk_action)
+                        + " " + resources.getString(R.string.map_markers_connector_before_destination)
+                        + " " + DirectionsGenerator.getLocalizedStreetName(leg.to.name, resources);
+            } else if (traverseMode.equals(TraverseMode.BICYCLE)) {
+                title = stepIndex + ". " + resources
+                        .getString(R.string.map_markers_mode_bicycle_action)
+                        + " " + resources.getString(R.string.map_markers_connector_before_destination)
+                        + " " + DirectionsGenerator.getLocalizedStreetName(leg.to.name, resources);
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Generates the snippet of the mode marker of a leg, with its departure time or duration.
+     *
+     * @param context application context
+     * @param leg     leg of the marker
+     * @return the snippet, with the delay colored if the leg is realtime
+     */
+    public static CharSequence generateModeMarkerSnippet(Context context, Leg leg) {
+        CharSequence snippet;
+        long legDuration;
+        TraverseMode traverseMode = TraverseMode.valueOf(leg.mode);
+
+        if (PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(OTPApp.PREFERENCE_KEY_API_VERSION, OTPApp.API_VERSION_V1)
+                == OTPApp.API_VERSION_V1){
+            legDuration = leg.duration;
+        } else{
+            legDuration = leg.duration / 1000;
+        }
+        if (traverseMode.isTransit()) {
+            CharSequence spannableSnippet = ConversionUtils
+                    .getTimeWithContext(context, leg.agencyTimeZoneOffset,
+                            Long.parseLong(leg.startTime), false);
+            if (leg.realTime){
+                int color = ConversionUtils.getDelayColor(leg.departureDelay, context);
+                spannableSnippet = ConversionUtils
+                        .getTimeWithContext(context, leg.agencyTimeZoneOffset,
+                                Long.parseLong(leg.startTime), false, color);
+            }
+            if (leg.headsign != null) {
+                snippet = TextUtils.concat(spannableSnippet, " ",
+                        context.getResources().getString(R.string.step_by_step_non_transit_to),
+                        " ", leg.headsign);
+            }
+            else{
+                snippet = spannableSnippet;
+            }
+        } else {
+            snippet = ConversionUtils
+                    .getFormattedDurationTextNoSeconds(legDuration, false, context)
+                    + " " + "-" + " "
+                    + ConversionUtils.getFormattedDistance(leg.distance, context);
+        }
+        return  snippet;
+    }
+
+    private static int getPathIcon(String modeString) {
+        TraverseMode mode = TraverseMode.valueOf(modeString);
+        int icon;
+
+        if (mode.compareTo(TraverseMode.BICYCLE) == 0) {
+            icon = R.drawable.cycling;
+        } else if (mode.compareTo(TraverseMode.CAR) == 0) {
+            icon = R.drawable.car;
+        } else if ((mode.compareTo(TraverseMode.BUS) == 0) || (mode.compareTo(TraverseMode.BUSISH)
+                == 0)) {
+            icon = R.drawable.bus;
+        } else if ((mode.compareTo(TraverseMode.RAIL) == 0) || (
+                mode.compareTo(TraverseMode.TRAINISH) == 0)) {
+            icon = R.drawable.train;
+        } else if (mode.compareTo(TraverseMode.FERRY) == 0) {
+            icon = R.drawable.ferry;
+        } else if (mode.compareTo(TraverseMode.GONDOLA) == 0) {
+            icon = R.drawable.boat;
+        } else if (mode.compareTo(TraverseMode.SUBWAY) == 0) {
+            icon = R.drawable.underground;
+        } else if (mode.compareTo(TraverseMode.TRAM) == 0) {
+            icon = R.drawable.tramway;
+        } else if (mode.compareTo(TraverseMode.WALK) == 0) {
+            icon = R.drawable.pedestriancrossing;
+        } else if (mode.compareTo(TraverseMode.CABLE_CAR) == 0) {
+            icon = R.drawable.cablecar;
+        } else if (mode.compareTo(TraverseMode.FUNICULAR) == 0) {
+            icon = R.drawable.funicolar;
+        } else if (mode.compareTo(TraverseMode.TRANSIT) == 0) {
+            icon = R.drawable.road;
+        } else if (mode.compareTo(TraverseMode.TRANSFER) == 0) {
+            icon = R.drawable.caution;
+        } else {
+            icon = R.drawable.road;
+        }
+
+        return icon;
+    }
+}
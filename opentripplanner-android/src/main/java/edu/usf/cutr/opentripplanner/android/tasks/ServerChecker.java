@@ -34,12 +34,20 @@ import org.opentripplanner.api.resource.ServerInfo;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.ServerCheckerCompleteListener;
 import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.model.ServerCapabilities;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerCapabilitiesDataSource;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
 
 public class ServerChecker extends AsyncTask<Server, Long, String> {
 
@@ -112,7 +120,6 @@ public class ServerChecker extends AsyncTask<Server, Long, String> {
     @Override
     protected String doInBackground(Server... params) {
         Server server = params[0];
-        ServerInfo serverInfo;
 
         if (server == null) {
             Log.w(OTPApp.TAG,
@@ -144,56 +151,75 @@ public class ServerChecker extends AsyncTask<Server, Long, String> {
             message += "\n" + context.getResources()
                             .getString(R.string.server_checker_info_reachable) + " ";
 
+            SharedPreferences.Editor prefsEditor = PreferenceManager.getDefaultSharedPreferences(
+                    context).edit();
+            ServerCapabilitiesDataSource capabilitiesDataSource = ServerCapabilitiesDataSource
+                    .getInstance(context);
+
+            // Server info dialog reports if the server is reachable, that always needs a probe
+            if (!showMessage) {
+                ServerCapabilities capabilities = capabilitiesDataSource
+                        .getCapabilities(server.getBaseURL());
+                if (capabilities != null) {
+                    Log.d(OTPApp.TAG, "Using stored capabilities of " + server.getBaseURL());
+                    prefsEditor.putString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX,
+                            capabilities.getFolderStructurePrefix());
+                    prefsEditor.putInt(OTPApp.PREFERENCE_KEY_API_VERSION,
+                            capabilities.getApiVersion());
+                    prefsEditor.commit();
+                    isWorking = true;
+                    return message + context.getResources().getString(android.R.string.yes);
+                }
+            }
+
             if (mapper == null) {
                 mapper = new ObjectMapper();
             }
-
-            int status = 0;
-            HttpURLConnection urlConnection = null;
             mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
-            SharedPreferences.Editor prefsEditor = PreferenceManager.getDefaultSharedPreferences(
-                    context).edit();
-
+            OtpHttpClient httpClient = OtpHttpClient.getInstance(server);
+            ProbeResult result = null;
+            Throwable lastError = null;
+
+            // Both API versions are probed at once, the first valid answer wins
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            CompletionService<ProbeResult> probes
+                    = new ExecutorCompletionService<ProbeResult>(executor);
+            probes.submit(new ServerInfoProbe(httpClient,
+                    server.getBaseURL() + OTPApp.SERVER_INFO_LOCATION_NEW,
+                    OTPApp.FOLDER_STRUCTURE_PREFIX_NEW));
+            probes.submit(new ServerInfoProbe(httpClient,
+                    server.getBaseURL() + OTPApp.SERVER_INFO_LOCATION_OLD,
+                    OTPApp.FOLDER_STRUCTURE_PREFIX_OLD));
             try {
-                URL url = new URL(server.getBaseURL() + OTPApp.SERVER_INFO_LOCATION_NEW);
-                urlConnection = (HttpURLConnection) url.openConnection();
-                urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-                urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
-                urlConnection.connect();
-                status = urlConnection.getResponseCode();
-                serverInfo = mapper.readValue(urlConnection.getInputStream(), ServerInfo.class);
-                prefsEditor.putString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX, OTPApp.FOLDER_STRUCTURE_PREFIX_NEW);
-            } catch (IOException e1) {
-                Log.e(OTPApp.TAG, "Server not working with API V1, trying again this time with" +
-                        " old version: "
-                        + e1.getMessage());
-                try {
-                    URL url = new URL(server.getBaseURL() + OTPApp.SERVER_INFO_LOCATION_OLD);
-                    urlConnection = (HttpURLConnection) url.openConnection();
-                    urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-                    urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
-                    urlConnection.connect();
-                    status = urlConnection.getResponseCode();
-                    serverInfo = mapper.readValue(urlConnection.getInputStream(), ServerInfo.class);
-                    prefsEditor.putString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX, OTPApp.FOLDER_STRUCTURE_PREFIX_OLD);
-                } catch (IOException e2) {
-                    Log.e(OTPApp.TAG, "Unable to reach server: " + e2.getMessage());
-                    message = context.getResources().getString(R.string.toast_server_checker_error_unreachable)
-                            + " "
-                            + e2.getMessage();
-                    return message;
-                } finally {
-                    if (urlConnection != null) {
-                        urlConnection.disconnect();
+                for (int i = 0; i < 2 && result == null; i++) {
+                    try {
+                        result = probes.take().get();
+                    } catch (ExecutionException e) {
+                        lastError = e.getCause();
+                        Log.d(OTPApp.TAG, "Server info probe failed: " + lastError);
                     }
                 }
+            } catch (InterruptedException e) {
+                lastError = e;
+                Thread.currentThread().interrupt();
             } finally {
-                if (urlConnection != null) {
-                    urlConnection.disconnect();
-                }
+                executor.shutdownNow();
+            }
+
+            if (result == null) {
+                String errorMessage = lastError != null ? lastError.getMessage() : "";
+                Log.e(OTPApp.TAG, "Unable to reach server: " + errorMessage);
+                message = context.getResources().getString(R.string.toast_server_checker_error_unreachable)
+                        + " "
+                        + errorMessage;
+                return message;
             }
 
+            int status = result.status;
+            ServerInfo serverInfo = result.serverInfo;
+            prefsEditor.putString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX, result.prefix);
+
             if (serverInfo != null){
                 int api_version = serverInfo.serverVersion.major;
                 if (serverInfo.serverVersion.major == 0){
@@ -204,6 +230,13 @@ public class ServerChecker extends AsyncTask<Server, Long, String> {
                 prefsEditor.putInt(OTPApp.PREFERENCE_KEY_API_VERSION,
                         api_version);
                 prefsEditor.commit();
+
+                if (status == HttpURLConnection.HTTP_OK) {
+                    capabilitiesDataSource.saveCapabilities(new ServerCapabilities(
+                            server.getBaseURL(), api_version, result.prefix,
+                            serverInfo.serverVersion.major, serverInfo.serverVersion.minor,
+                            System.currentTimeMillis()));
+                }
             }
 
 
@@ -267,4 +300,56 @@ public class ServerChecker extends AsyncTask<Server, Long, String> {
         }
     }
 
+    /**
+     * Result of a successful server info probe.
+     */
+    private static class ProbeResult {
+
+        private final String prefix;
+
+        private final int status;
+
+        private final ServerInfo serverInfo;
+
+        private ProbeResult(String prefix, int status, ServerInfo serverInfo) {
+            this.prefix = prefix;
+            this.status = status;
+            this.serverInfo = serverInfo;
+        }
+    }
+
+    /**
+     * Requests the server info from one of the locations used by the different API versions.
+     */
+    private static class ServerInfoProbe implements Callable<ProbeResult> {
+
+        private final OtpHttpClient httpClient;
+
+        private final String url;
+
+        private final String prefix;
+
+        private ServerInfoProbe(OtpHttpClient httpClient, String url, String prefix) {
+            this.httpClient = httpClient;
+            this.url = url;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public ProbeResult call() throws IOException {
+            HttpURLConnection urlConnection = null;
+            boolean reusable = false;
+            try {
+                urlConnection = httpClient.openConnection(url);
+                urlConnection.connect();
+                int status = urlConnection.getResponseCode();
+                ServerInfo serverInfo = mapper.readValue(httpClient.getInputStream(urlConnection),
+                        ServerInfo.class);
+                reusable = true;
+                return new ProbeResult(prefix, status, serverInfo);
+            } finally {
+                httpClient.release(urlConnection, reusable);
+            }
+        }
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.tasks;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.model.ServerHealth;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerHealthDataSource;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
+
+/**
+ * Measures the round trip time and availability of OTP servers and stores the results, so
+ * server auto-detection can choose the fastest healthy server when several of them cover the
+ * same location.
+ * <p>
+ * A probe is a request to the server API root; any HTTP answer below 500 counts as the server
+ * being up. The last candidates registered with {@link #schedule(Context, List)}, at most
+ * {@link #MAX_SCHEDULED_PROBES}, are probed again every
+ * {@link OTPApp#SERVER_HEALTH_PROBE_INTERVAL} in a background thread, only while the app is in
+ * foreground: {@link #pauseSchedule()} stops the thread and {@link #resumeSchedule()} starts it
+ * again.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerHealthProber {
+
+    private static final int MAX_CONCURRENT_PROBES = 4;
+
+    private static final int MAX_SCHEDULED_PROBES = MAX_CONCURRENT_PROBES;
+
+    private static ScheduledExecutorService sScheduler;
+
+    private static List<Server> sCandidates = new ArrayList<Server>();
+
+    private static Context sContext;
+
+    private static boolean sPaused;
+
+    private ServerHealthProber() {
+    }
+
+    /**
+     * Returns the stored health of the servers, probing first, in parallel, the ones that were
+     * not probed in the last {@link OTPApp#SERVER_HEALTH_PROBE_INTERVAL}.
+     *
+     * @param context  application context
+     * @param servers  servers to check
+     * @param deadline max time to wait for the probes, in milliseconds
+     * @return health of each server by base URL, servers never probed successfully are missing
+     */
+    public static Map<String, ServerHealth> getHealth(Context context, List<Server> servers,
+                                                      long deadline) {
+        ServerHealthDataSource dataSource = ServerHealthDataSource.getInstance(context);
+        Map<String, ServerHealth> healthByURL = new HashMap<String, ServerHealth>();
+        List<Server> stale = new ArrayList<Server>();
+        long oldestValid = System.currentTimeMillis() - OTPApp.SERVER_HEALTH_PROBE_INTERVAL;
+
+        for (Server server : servers) {
+            ServerHealth health = dataSource.getHealth(server.getBaseURL());
+            if (health != null) {
+                healthByURL.put(server.getBaseURL(), health);
+            }
+            if (health == null || health.getDateProbed() < oldestValid) {
+                stale.add(server);
+            }
+        }
+
+        if (!stale.isEmpty()) {
+            healthByURL.putAll(probe(context, stale, deadline));
+        }
+        return healthByURL;
+    }
+
+    /**
+     * Probes the servers in parallel and stores the results.
+     *
+     * @param context  application context
+     * @param servers  servers to probe
+     * @param deadline max time to wait for the probes, in milliseconds; servers that did not
+     *                 answer by then count as failed
+     * @return updated health of each probed server by base URL
+     */
+    public static Map<String, ServerHealth> probe(Context context, List<Server> servers,
+                                                  long deadline) {
+        Map<String, ServerHealth> healthByURL = new HashMap<String, ServerHealth>();
+        if (servers.isEmpty()) {
+            return healthByURL;
+        }
+
+        List<Callable<Long>> probes = new ArrayList<Callable<Long>>(servers.size());
+        for (Server server : servers) {
+            probes.add(new RoundTripProbe(server.getBaseURL()));
+        }
+
+        List<Future<Long>> results = null;
+        ExecutorService executor = Executors
+                .newFixedThreadPool(Math.min(servers.size(), MAX_CONCURRENT_PROBES));
+        try {
+            results = executor.invokeAll(probes, deadline, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.w(OTPApp.TAG, "Server health probes interrupted: " + e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (results == null) {
+            return healthByURL;
+        }
+
+        ServerHealthDataSource dataSource = ServerHealthDataSource.getInstance(context);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < servers.size(); i++) {
+            String baseURL = servers.get(i).getBaseURL();
+            long roundTripTime = -1;
+            try {
+                roundTripTime = results.get(i).get();
+            } catch (CancellationException e) {
+                Log.d(OTPApp.TAG, "Server " + baseURL + " did not answer before the deadline");
+            } catch (ExecutionException e) {
+                Log.d(OTPApp.TAG, "Server " + baseURL + " failed the probe: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            ServerHealth health = dataSource.getHealth(baseURL);
+            if (health == null) {
+                health = new ServerHealth(baseURL);
+            }
+            health.addSample(roundTripTime >= 0, roundTripTime, now);
+            dataSource.saveHealth(health);
+            healthByURL.put(baseURL, health);
+            Log.d(OTPApp.TAG, "Server " + baseURL + " - RTT: " + health.getRoundTripTime()
+                    + " ms, success rate: " + health.getSuccessRate());
+        }
+        return healthByURL;
+    }
+
+    /**
+     * Sets the servers to be probed periodically in background, replacing the previous ones.
+     *
+     * @param context    application context
+     * @param candidates servers to probe, only the first {@link #MAX_SCHEDULED_PROBES} are kept
+     */
+    public static synchronized void schedule(Context context, List<Server> candidates) {
+        sContext = context.getApplicationContext();
+        sCandidates = new ArrayList<Server>(
+                candidates.subList(0, Math.min(candidates.size(), MAX_SCHEDULED_PROBES)));
+        if (!sPaused) {
+            startScheduler();
+        }
+    }
+
+    /**
+     * Stops probing servers in background, interrupting the probes in flight, until
+     * {@link #resumeSchedule()} is called.
+     */
+    public static synchronized void pauseSchedule() {
+        sPaused = true;
+        if (sScheduler != null) {
+            sScheduler.shutdownNow();
+            sScheduler = null;
+        }
+    }
+
+    /**
+     * Probes again in background the servers registered before the last pause, if any.
+     */
+    public static synchronized void resumeSchedule() {
+        sPaused = false;
+        if (!sCandidates.isEmpty()) {
+            startScheduler();
+        }
+    }
+
+    private static void startScheduler() {
+        if (sScheduler != null) {
+            return;
+        }
+        sScheduler = Executors.newSingleThreadScheduledExecutor();
+        sScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                List<Server> servers;
+                Context context;
+                synchronized (ServerHealthProber.class) {
+                    servers = sCandidates;
+                    context = sContext;
+                }
+                try {
+                    probe(context, servers, OTPApp.HTTP_CONNECTION_TIMEOUT);
+                } catch (RuntimeException e) {
+                    // An exception would cancel the next executions
+                    Log.e(OTPApp.TAG, "Error probing servers: " + e);
+                }
+            }
+        }, OTPApp.SERVER_HEALTH_PROBE_INTERVAL, OTPApp.SERVER_HEALTH_PROBE_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Measures the time until the server answers a request to its API root.
+     */
+    private static class RoundTripProbe implements Callable<Long> {
+
+        private final String baseURL;
+
+        private RoundTripProbe(String baseURL) {
+            this.baseURL = baseURL;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            OtpHttpClient httpClient = OtpHttpClient.getInstance(baseURL);
+            HttpURLConnection urlConnection = null;
+            boolean reusable = false;
+            try {
+                long start = System.currentTimeMillis();
+                urlConnection = httpClient
+                        .openConnection(baseURL + OTPApp.SERVER_INFO_LOCATION_NEW);
+                int status = urlConnection.getResponseCode();
+                long roundTripTime = System.currentTimeMillis() - start;
+                if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    throw new IOException("Server answered " + status);
+                }
+                reusable = status < HttpURLConnection.HTTP_BAD_REQUEST;
+                return roundTripTime;
+            } finally {
+                httpClient.release(urlConnection, reusable);
+            }
+        }
+    }
+}
@@ -41,7 +41,11 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import au.com.bytecode.opencsv.CSVReader;
 import edu.usf.cutr.opentripplanner.android.OTPApp;
@@ -50,8 +54,10 @@ import edu.usf.cutr.opentripplanner.android.exceptions.ServerListParsingExceptio
 import edu.usf.cutr.opentripplanner.android.listeners.ServerCheckerCompleteListener;
 import edu.usf.cutr.opentripplanner.android.listeners.ServerSelectorCompleteListener;
 import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.model.ServerHealth;
+import edu.usf.cutr.opentripplanner.android.sqlite.ServerDirectory;
 import edu.usf.cutr.opentripplanner.android.sqlite.ServersDataSource;
-import edu.usf.cutr.opentripplanner.android.util.LocationUtil;
+import edu.usf.cutr.opentripplanner.android.util.ServerGridIndex;
 
 import static edu.usf.cutr.opentripplanner.android.OTPApp.PREFERENCE_KEY_AUTO_DETECT_SERVER;
 import static edu.usf.cutr.opentripplanner.android.OTPApp.PREFERENCE_KEY_CUSTOM_SERVER_URL;
@@ -140,7 +146,7 @@ public class ServerSelector extends AsyncTask<LatLng, Integer, Integer>
         if (!mustRefreshList) {
             // Check if servers are stored in SQLite?
             Log.d(OTPApp.TAG, "Attempt retrieving servers from sqlite");
-            serverList = getServersFromSQLite();
+            serverList = getStoredServers();
         }
 
         // If forced to refresh list OR
@@ -148,13 +154,13 @@ public class ServerSelector extends AsyncTask<LatLng, Integer, Integer>
         if (serverList == null || serverList.isEmpty() || mustRefreshList) {
             Log.d(OTPApp.TAG,
                     "No data from sqlite. Attempt retrieving servers from google spreadsheet");
-            serverList = downloadServerList(
-                    context.getResources().getString(R.string.servers_spreadsheet_url));
-
-            // Insert new list to database
-            if (serverList != null && !serverList.isEmpty()) {
-                insertServerListToDatabase(serverList);
-                serverList = getServersFromSQLite();
+            // Only the differences with the stored list are written to database
+            if (refreshServerList(
+                    context.getResources().getString(R.string.servers_spreadsheet_url))) {
+                ServerDirectory.reload(context);
+                serverList = getStoredServers();
+            } else {
+                serverList = null;
             }
 
             // If still null
@@ -174,128 +180,162 @@ public class ServerSelector extends AsyncTask<LatLng, Integer, Integer>
         return serverList.size();
     }
 
-    private List<Server> getServersFromSQLite() {
-        List<Server> servers = new ArrayList<Server>();
-
-        dataSource.open();
-        List<Server> values = dataSource.getMostRecentServers();
-        String shown = "";
-        for (Server s : values) {
-            shown += s.getRegion() + s.getDate().toString() + "\n";
-            servers.add(new Server(s));
-        }
-        Log.d(OTPApp.TAG, shown);
-        dataSource.close();
-
-        dataSource.open();
-        Calendar someDaysBefore = Calendar.getInstance();
-        someDaysBefore.add(Calendar.DAY_OF_MONTH, -OTPApp.EXPIRATION_DAYS_FOR_SERVER_LIST);
-        Long serversUpdateDate = dataSource.getMostRecentDate();
-        if ((serversUpdateDate != null) && (someDaysBefore.getTime().getTime()
-                > serversUpdateDate)) {
-            servers = null;
+    /**
+     * @return the servers of the current directory snapshot, or null if the list stored is
+     * empty or expired
+     */
+    private List<Server> getStoredServers() {
+        ServerDirectory directory = ServerDirectory.getInstance(context);
+        if (directory.isExpired()) {
+            return null;
         }
-        dataSource.close();
-//		Toast.makeText(activity.getApplicationContext(), shown, Toast.LENGTH_SHORT).show();
-
-        return servers;
+        return directory.getServers();
     }
 
     /**
-     * Downloads the list of OTP servers from the Google Doc directory
+     * Updates the stored list of OTP servers with the Google Doc directory.
+     * <p>
+     * The directory is requested conditionally, so if it did not change since the last download
+     * the server answers 304 and the stored list is only marked as up to date. Otherwise rows are
+     * parsed and validated as they are read and compared with the stored servers; once the whole
+     * directory has been read, only the servers that were added, changed or removed are written.
      *
      * @param urlString URL address of the Google Doc
-     * @return Server a list of OTP servers contained in the Google Doc
+     * @return true if the stored list is up to date with the directory
      */
-    private List<Server> downloadServerList(String urlString) {
+    private boolean refreshServerList(String urlString) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         HttpURLConnection urlConnection = null;
+        CSVReader reader = null;
 
+        dataSource.open();
         try {
-            List<Server> serverList = new ArrayList<Server>();
+            dataSource.deleteOutdatedServers();
+            Map<String, Server> storedServers = new HashMap<String, Server>();
+            List<Server> removedServers = new ArrayList<Server>();
+            for (Server stored : ServerDirectory.getInstance(context).getServers()) {
+                // Rows repeated by older versions are removed, only one is kept
+                if (storedServers.containsKey(stored.getDirectoryKey())) {
+                    removedServers.add(stored);
+                } else {
+                    storedServers.put(stored.getDirectoryKey(), stored);
+                }
+            }
+
             URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
             urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
+            if (!storedServers.isEmpty()) {
+                String eTag = prefs.getString(OTPApp.PREFERENCE_KEY_SERVER_LIST_ETAG, null);
+                if (eTag != null) {
+                    urlConnection.setRequestProperty("If-None-Match", eTag);
+                }
+                urlConnection.setIfModifiedSince(
+                        prefs.getLong(OTPApp.PREFERENCE_KEY_SERVER_LIST_LAST_MODIFIED, 0));
+            }
             urlConnection.connect();
 
-            BufferedReader bufferedReader = new BufferedReader
-                    (new InputStreamReader(urlConnection.getInputStream()));
-            CSVReader reader = new CSVReader(bufferedReader);
-            try {
-                Long currentTime = Calendar.getInstance().getTime().getTime();
+            Long currentTime = Calendar.getInstance().getTime().getTime();
 
-                List<String[]> serversStrings = reader.readAll();
-                for (String[] serverString : serversStrings) {
-                    if (serverString[0].equalsIgnoreCase("Region")) {
-                        continue; //Ignore the first line of the file
-                    }
-                    for (String stringEntry : serverString) {
-                        stringEntry = stringEntry.trim();
-                    }
-                    boolean allFieldsNotNull = true;
-                    for (String serverField : serverString) {
-                        serverField = serverField.trim();
-                        if (serverField.equals("")) {
-                            Log.e(OTPApp.TAG, "Some necessary fields are null, server not added");
-                            allFieldsNotNull = false;
-                            break;
-                        }
-                    }
-                    if (allFieldsNotNull && (serverString.length >= 9)) {
-                        try {
-                            Server s = new Server(currentTime, serverString[0], serverString[1],
-                                    serverString[2], serverString[3], serverString[4],
-                                    serverString[5], serverString[6], serverString[7],
-                                    serverString[8]);
-                            serverList.add(s);
-                        } catch (ServerListParsingException e) {
-                            Log.e(OTPApp.TAG,
-                                    "Error parsing necessary fields, server not added: " + e);
-                        }
-                    } else {
-                        Log.e(OTPApp.TAG,
-                                "Server does not provide necessary fields, server not added");
-                    }
-                }
-            } catch (IOException e) {
-                Log.e(OTPApp.TAG, "Problem reading CSV server file: " + e.getMessage());
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(OTPApp.TAG, "Server list not modified since last download");
+                dataSource.touchServers(currentTime);
+                return true;
+            }
 
-                try {
-                    reader.close();
-                } catch (IOException e2) {
-                    Log.e(OTPApp.TAG, "Error closing CSVReader file: " + e2);
+            reader = new CSVReader(new BufferedReader
+                    (new InputStreamReader(urlConnection.getInputStream())));
+            List<Server> addedServers = new ArrayList<Server>();
+            List<Server> changedServers = new ArrayList<Server>();
+            Set<String> parsedKeys = new HashSet<String>();
+            String[] serverString;
+            int count = 0;
+            while ((serverString = reader.readNext()) != null) {
+                Server s = parseServer(serverString, currentTime);
+                if (s == null) {
+                    continue;
                 }
-                return null;
-            } finally {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(OTPApp.TAG, "Error closing CSVReader file: " + e);
+                if (!parsedKeys.add(s.getDirectoryKey())) {
+                    Log.w(OTPApp.TAG, "Server '" + s.getRegion() + "' repeated in the directory, "
+                            + "only the first row is used");
+                    continue;
+                }
+                count++;
+                Server stored = storedServers.remove(s.getDirectoryKey());
+                if (stored == null) {
+                    addedServers.add(s);
+                } else if (!stored.hasSameDirectoryFields(s)) {
+                    s.setId(stored.getId());
+                    changedServers.add(s);
                 }
             }
-            Log.d(OTPApp.TAG, "Servers: " + serverList.size());
-            return serverList;
+            removedServers.addAll(storedServers.values());
+            Log.d(OTPApp.TAG, "Servers: " + count + " - added: " + addedServers.size()
+                    + ", changed: " + changedServers.size() + ", removed: "
+                    + removedServers.size());
+
+            // The whole directory was read, apply the differences
+            if (dataSource.saveServers(addedServers, changedServers, removedServers,
+                    currentTime) < 0) {
+                return false;
+            }
 
+            SharedPreferences.Editor prefsEditor = prefs.edit();
+            prefsEditor.putString(OTPApp.PREFERENCE_KEY_SERVER_LIST_ETAG,
+                    urlConnection.getHeaderField("ETag"));
+            prefsEditor.putLong(OTPApp.PREFERENCE_KEY_SERVER_LIST_LAST_MODIFIED,
+                    urlConnection.getLastModified());
+            prefsEditor.commit();
+            return true;
         } catch (IOException e) {
             Log.e(OTPApp.TAG, "Unable to download spreadsheet with server list: " + e.getMessage());
-            return null;
+            return false;
         } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(OTPApp.TAG, "Error closing CSVReader file: " + e);
+                }
+            }
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
+            dataSource.close();
         }
-
-
     }
 
-    private void insertServerListToDatabase(List<Server> servers) {
-        dataSource.open();
-        for (Server server : servers) {
-            if (dataSource.createServer(server) == null) {
-                Log.e(OTPApp.TAG, "Some server fields are incorrect, server not added");
+    /**
+     * Validates a row of the Google Doc directory and creates the server it describes.
+     *
+     * @param serverString fields of the row
+     * @param currentTime  date to set to the server
+     * @return the server, or null if the row is the header or it is not valid
+     */
+    private Server parseServer(String[] serverString, Long currentTime) {
+        if (serverString[0].equalsIgnoreCase("Region")) {
+            return null; //Ignore the first line of the file
+        }
+        for (String serverField : serverString) {
+            if (serverField.trim().equals("")) {
+                Log.e(OTPApp.TAG, "Some necessary fields are null, server not added");
+                return null;
             }
         }
-        dataSource.close();
+        if (serverString.length < 9) {
+            Log.e(OTPApp.TAG, "Server does not provide necessary fields, server not added");
+            return null;
+        }
+        try {
+            return new Server(currentTime, serverString[0], serverString[1],
+                    serverString[2], serverString[3], serverString[4],
+                    serverString[5], serverString[6], serverString[7],
+                    serverString[8]);
+        } catch (ServerListParsingException e) {
+            Log.e(OTPApp.TAG, "Error parsing necessary fields, server not added: " + e);
+            return null;
+        }
     }
 
     /**
@@ -314,20 +354,73 @@ public class ServerSelector extends AsyncTask<LatLng, Integer, Integer>
             return selectedServer;
         }
 
-        boolean isInBoundingBox;
-        Server server = null;
-        for (Server knownServer : knownServers) {
-            // Check bounds here to find server - acceptable error is set to 1000m = 1km
-            isInBoundingBox = LocationUtil
-                    .checkPointInBoundingBox(currentLocation, knownServer, 1000);
+        List<Server> candidates = new ArrayList<Server>();
+        ServerDirectory.getInstance(context).getIndex()
+                .findAll(currentLocation.latitude, currentLocation.longitude, candidates);
+
+        if (candidates.isEmpty()) {
+            return null;
+        } else if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        return findHealthyServer(candidates);
+    }
 
-            if (isInBoundingBox) {
-                server = knownServer;
+    /**
+     * Chooses the lowest-latency healthy server among several servers that cover the same
+     * location.
+     * <p>
+     * Only servers of a similar size compete by latency: the smallest healthy server and the
+     * healthy ones up to {@link OTPApp#SERVER_HEALTH_MAX_AREA_RATIO} times its area, such as
+     * mirrors or overlapping city deployments. A much bigger server, like a country wide one, is
+     * only chosen when no smaller server is healthy, as a regional server knows the local
+     * transit better. Servers never probed are considered healthy and come after the measured
+     * ones, and failing servers are only used if there is nothing else.
+     * <p>
+     * The candidates are also registered to be probed again in background, so the next
+     * detection finds their health up to date instead of waiting for the probes.
+     *
+     * @param candidates servers that contain the location, sorted by area
+     * @return the server to use
+     */
+    private Server findHealthyServer(List<Server> candidates) {
+        Map<String, ServerHealth> healthByURL = ServerHealthProber
+                .getHealth(context, candidates, OTPApp.SERVER_HEALTH_PROBE_DEADLINE);
+
+        Server best = null;
+        ServerHealth bestHealth = null;
+        double maxArea = 0;
+        List<Server> competing = new ArrayList<Server>();
+        for (Server candidate : candidates) {
+            ServerHealth health = healthByURL.get(candidate.getBaseURL());
+            if (health != null && !health.isHealthy()) {
+                continue;
+            }
+            double area = ServerGridIndex.getArea(candidate);
+            if (best == null) {
+                best = candidate;
+                bestHealth = health;
+                maxArea = area * OTPApp.SERVER_HEALTH_MAX_AREA_RATIO;
+                competing.add(candidate);
+            } else if (area > maxArea) {
+                // Sorted by area, the next ones are bigger too
                 break;
+            } else {
+                competing.add(candidate);
+                if (health != null && (bestHealth == null
+                        || health.getRoundTripTime() < bestHealth.getRoundTripTime())) {
+                    best = candidate;
+                    bestHealth = health;
+                }
             }
         }
-
-        return server;
+        ServerHealthProber.schedule(context, competing.isEmpty() ? candidates : competing);
+        if (best == null) {
+            return candidates.get(0);
+        }
+        Log.d(OTPApp.TAG, "Fastest healthy server for this location: " + best.getRegion());
+        return best;
     }
 
     protected void onPostExecute(Integer result) {
@@ -491,9 +584,7 @@ public class ServerSelector extends AsyncTask<LatLng, Integer, Integer>
                     Server s = null;
                     boolean serverIsChanged = true;
                     if (serverId != 0) {
-                        dataSource.open();
-                        s = dataSource.getServer(prefs.getLong(OTPApp.PREFERENCE_KEY_SELECTED_SERVER, 0));
-                        dataSource.close();
+                        s = ServerDirectory.getInstance(context).getServer(serverId);
                     }
                     if (s != null) {
                         serverIsChanged = !(s.getRegion().equals(selectedServer.getRegion()));
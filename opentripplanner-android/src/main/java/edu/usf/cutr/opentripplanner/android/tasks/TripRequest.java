@@ -30,7 +30,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.res.Resources;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -38,17 +37,19 @@ import android.widget.Toast;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import edu.usf.cutr.opentripplanner.android.OTPApp;
 import edu.usf.cutr.opentripplanner.android.R;
 import edu.usf.cutr.opentripplanner.android.listeners.TripRequestCompleteListener;
 import edu.usf.cutr.opentripplanner.android.model.Server;
+import edu.usf.cutr.opentripplanner.android.util.InFlightRequests;
 import edu.usf.cutr.opentripplanner.android.util.JacksonConfig;
+import edu.usf.cutr.opentripplanner.android.util.OtpHttpClient;
+import edu.usf.cutr.opentripplanner.android.util.PlanResponseCache;
 
 /**
  * AsyncTask that invokes a trip planning request to the OTP Server
@@ -59,6 +60,15 @@ import edu.usf.cutr.opentripplanner.android.util.JacksonConfig;
 
 public class TripRequest extends AsyncTask<Request, Integer, Long> {
 
+    // Callers modify the legs of the plan with realtime updates, each one gets its own copy
+    static final InFlightRequests<Response> inFlightPlans
+            = new InFlightRequests<Response>("plan") {
+        @Override
+        protected Response copy(Response response) {
+            return PlanResponseCache.copy(response);
+        }
+    };
+
     private Response response;
 
     private ProgressDialog progressDialog;
@@ -75,13 +85,39 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
 
     private TripRequestCompleteListener callback;
 
+    private boolean refresh;
+
+    private boolean departNow;
+
+    // Connection being read by this task, so it can be aborted from another thread
+    private volatile HttpURLConnection activeConnection;
+
+    // Key of the plan request this task has in flight, to stop sharing it when aborted
+    private volatile String inFlightKey;
+
+    private volatile boolean superseded = false;
+
     public TripRequest(WeakReference<Activity> activity, Context context, Resources resources,
                        Server selectedServer, TripRequestCompleteListener callback) {
+        this(activity, context, resources, selectedServer, callback, false, false);
+    }
+
+    /**
+     * @param refresh   if true the plan cache is not consulted, a new plan is always requested
+     *                  to the server and it replaces the cached one
+     * @param departNow true if the date and time of the request are the current ones, not
+     *                  chosen by the user
+     */
+    public TripRequest(WeakReference<Activity> activity, Context context, Resources resources,
+                       Server selectedServer, TripRequestCompleteListener callback,
+                       boolean refresh, boolean departNow) {
         this.activity = activity;
         this.context = context;
         this.selectedServer = selectedServer;
         this.callback = callback;
         this.resources = resources;
+        this.refresh = refresh;
+        this.departNow = departNow;
         if (activity != null) {
             Activity activityRetrieved = activity.get();
             progressDialog = new ProgressDialog(activityRetrieved);
@@ -109,12 +145,43 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
             return null;
         }
         else{
-            String prefix = PreferenceManager.getDefaultSharedPreferences(context)
+            final String prefix = PreferenceManager.getDefaultSharedPreferences(context)
                     .getString(OTPApp.PREFERENCE_KEY_FOLDER_STRUCTURE_PREFIX
                             , OTPApp.FOLDER_STRUCTURE_PREFIX_NEW);
-            String baseURL = selectedServer.getBaseURL();
-            for (Request req : reqs) {
-                response = requestPlan(req, prefix, baseURL);
+            final String baseURL = selectedServer.getBaseURL();
+            PlanResponseCache planCache = PlanResponseCache.getInstance(context);
+            for (final Request req : reqs) {
+                String key = buildPlanKey(req, prefix, baseURL, departNow);
+                currentRequestString = buildPlanURL(req, prefix, baseURL);
+                if (refresh) {
+                    PlanPrefetcher.discard();
+                    response = null;
+                } else {
+                    response = PlanPrefetcher.claim(key);
+                    if (response == null) {
+                        response = departNow
+                                ? planCache.get(key, OTPApp.PLAN_CACHE_NOW_WINDOW)
+                                : planCache.get(key);
+                    }
+                }
+                if (response != null) {
+                    Log.d(OTPApp.TAG, "Showing cached plan for key: " + key);
+                } else {
+                    // An identical plan already in flight is shared instead of requested again
+                    inFlightKey = key;
+                    response = inFlightPlans.execute(key, new Callable<Response>() {
+                        @Override
+                        public Response call() {
+                            return requestPlan(req, prefix, baseURL);
+                        }
+                    });
+                    if (response != null && response.getPlan() != null
+                            && response.getError() == null) {
+                        planCache.put(key, response);
+                    } else if (response == null && !isCancelled()) {
+                        cancel(true);
+                    }
+                }
             }
         }
         return totalSize;
@@ -130,6 +197,11 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
             Log.e(OTPApp.TAG, "Error in TripRequest Cancelled dismissing dialog: " + e);
         }
 
+        if (superseded) {
+            Log.d(OTPApp.TAG, "Trip request superseded: " + currentRequestString);
+            return;
+        }
+
         Activity activityRetrieved = activity.get();
         if (activityRetrieved != null) {
             AlertDialog.Builder geocoderAlert = new AlertDialog.Builder(activityRetrieved);
@@ -198,6 +270,28 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
         }
     }
 
+    /**
+     * Aborts this request because a newer one replaces it.
+     * <p>
+     * The task is cancelled, so its result never reaches the listener and no error is shown,
+     * and the connection it is reading, if any, is closed so the download and the parse stop at
+     * once instead of running until the socket timeout.
+     */
+    public void supersede() {
+        superseded = true;
+        cancel(true);
+        final HttpURLConnection connection = activeConnection;
+        if (connection != null) {
+            inFlightPlans.abandon(inFlightKey);
+            // Closing the socket may block, keep it out of the caller thread
+            new Thread() {
+                public void run() {
+                    connection.disconnect();
+                }
+            }.start();
+        }
+    }
+
     protected String getErrorMessage(int errorCode) {
         if (errorCode == Message.SYSTEM_ERROR.getId()) {
             return (resources.getString(R.string.tripplanner_error_system));
@@ -244,63 +338,88 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
         }
     }
 
-    protected Response requestPlan(Request requestParams, String prefix, String baseURL) {
-        HashMap<String, String> tmp = requestParams.getParameters();
-
-        Collection c = tmp.entrySet();
-        Iterator itr = c.iterator();
-
-        String params = "";
-        boolean first = true;
-        while (itr.hasNext()) {
-            if (first) {
-                params += "?" + itr.next();
-                first = false;
-            } else {
-                params += "&" + itr.next();
-            }
+    /**
+     * Builds the plan URL for a request, with the parameters sorted by name so equivalent
+     * requests always produce the same URL and can share a cache entry.
+     */
+    protected static String buildPlanURL(Request requestParams, String prefix, String baseURL) {
+        Map<String, String> sortedParams = new TreeMap<String, String>(
+                requestParams.getParameters());
+
+        StringBuilder params = new StringBuilder();
+        for (Map.Entry<String, String> param : sortedParams.entrySet()) {
+            params.append(params.length() == 0 ? "?" : "&")
+                    .append(param.getKey()).append("=").append(param.getValue());
         }
 
+        String paramsString = params.toString();
         if (requestParams.getBikeRental()) {
-            String updatedString;
             if (prefix.equals(OTPApp.FOLDER_STRUCTURE_PREFIX_NEW)){
-                updatedString = params.replace(TraverseMode.BICYCLE.toString(),
+                paramsString = paramsString.replace(TraverseMode.BICYCLE.toString(),
                         TraverseMode.BICYCLE.toString() + OTPApp.OTP_RENTAL_QUALIFIER);
             }
             else{
-                updatedString = params.replace(TraverseMode.BICYCLE.toString(),
+                paramsString = paramsString.replace(TraverseMode.BICYCLE.toString(),
                         TraverseMode.BICYCLE.toString() + ", " + TraverseMode.WALK.toString());
             }
+        }
+
+        return baseURL + prefix + OTPApp.PLAN_LOCATION + paramsString;
+    }
 
-            params = updatedString;
+    /**
+     * Builds the key that identifies the plan of a request in the cache, the speculative plans
+     * and the plans in flight.
+     * <p>
+     * It is the plan URL, except for plans departing now: their date and time change every
+     * minute, so they are left out of the key and replaced by a marker. A plan departing now is
+     * then reused by the requests departing now made up to {@link OTPApp#PLAN_CACHE_NOW_WINDOW}
+     * after it was stored, see {@link PlanResponseCache#get(String, long)}.
+     *
+     * @param departNow true if the date and time of the request are the current ones
+     */
+    protected static String buildPlanKey(Request requestParams, String prefix, String baseURL,
+                                         boolean departNow) {
+        String u = buildPlanURL(requestParams, prefix, baseURL);
+        if (!departNow) {
+            return u;
         }
+        String key = u.replaceAll("(?<=[?&])(date|time)=[^&]*&?", "");
+        char last = key.charAt(key.length() - 1);
+        return key + (last == '?' || last == '&' ? "" : "&") + "now";
+    }
 
-        String u = baseURL + prefix + OTPApp.PLAN_LOCATION + params;
+    protected Response requestPlan(Request requestParams, String prefix, String baseURL) {
+        String u = buildPlanURL(requestParams, prefix, baseURL);
 
         Log.d(OTPApp.TAG, "URL: " + u);
 
         currentRequestString = u;
 
+        OtpHttpClient httpClient = OtpHttpClient.getInstance(baseURL);
         HttpURLConnection urlConnection = null;
-        URL url;
+        boolean reusable = false;
         Response plan = null;
 
         try {
-            url = new URL(u);
-
-            disableConnectionReuseIfNecessary(); // For bugs in HttpURLConnection pre-Froyo
-
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestProperty("Accept", "application/json");
-            urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
+            urlConnection = httpClient.openConnection(u);
+            activeConnection = urlConnection;
+            if (superseded) {
+                return null;
+            }
             plan = JacksonConfig.getObjectReaderInstance()
-                    .readValue(urlConnection.getInputStream());
+                    .readValue(httpClient.getInputStream(urlConnection));
+            reusable = true;
         } catch (java.net.SocketTimeoutException e) {
             Log.e(OTPApp.TAG, "Timeout fetching JSON or XML: " + e);
             e.printStackTrace();
             cancel(true);
         } catch (IOException e) {
+            if (superseded) {
+                // The connection was closed by supersede()
+                Log.d(OTPApp.TAG, "Trip request aborted: " + e);
+                return null;
+            }
             Log.e(OTPApp.TAG, "Error fetching JSON or XML: " + e);
             e.printStackTrace();
             cancel(true);
@@ -308,19 +427,9 @@ public class TripRequest extends AsyncTask<Request, Integer, Long> {
             // requestStartTime = 0;
             // requestEndTime = 0;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            activeConnection = null;
+            httpClient.release(urlConnection, reusable);
         }
         return plan;
     }
-
-    /**
-     * Disable HTTP connection reuse which was buggy pre-froyo
-     */
-    private void disableConnectionReuseIfNecessary() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-            System.setProperty("http.keepAlive", "false");
-        }
-    }
 }
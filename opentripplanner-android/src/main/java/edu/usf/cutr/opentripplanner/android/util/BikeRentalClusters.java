@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.opentripplanner.routing.bike_rental.BikeRentalStation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.usf.cutr.opentripplanner.android.model.BikeRentalCluster;
+
+/**
+ * Bike rental stations grouped in a grid of cells of the same size on the screen, for each
+ * zoom level of the map.
+ * <p>
+ * Cells are squares of the Web Mercator projection used by the map, so each cell of a zoom level
+ * contains four cells of the next one and the groups are built once for the most detailed level
+ * and merged for the others. Above the most detailed level every station is shown on its own.
+ * Stations alone in their cell keep the station id, so their markers stay the same when
+ * zooming.
+ * <p>
+ * Each level is indexed by its own cells, so the groups inside the visible region are found
+ * without going through all of them.
+ * <p>
+ * Building the groups is meant to be done out of the UI thread, the result is immutable.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class BikeRentalClusters {
+
+    private static final int TILE_SIZE = 256; // dp at zoom 0
+
+    private final int maxZoom;
+
+    // One list per zoom level, plus a last one with all the stations
+    private final List<List<BikeRentalCluster>> levels;
+
+    private final List<MercatorGridIndex<BikeRentalCluster>> indexes;
+
+    private BikeRentalClusters(int maxZoom, List<List<BikeRentalCluster>> levels,
+            List<MercatorGridIndex<BikeRentalCluster>> indexes) {
+        this.maxZoom = maxZoom;
+        this.levels = levels;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Groups the stations for all the zoom levels.
+     *
+     * @param stations stations to group, repeated ids are ignored
+     * @param cellSize size of the side of the cells, in dp, it must be a power of 2 not greater
+     *                 than 256
+     * @param maxZoom  last zoom level where the stations are grouped
+     * @return the groups
+     */
+    public static BikeRentalClusters build(List<BikeRentalStation> stations, int cellSize,
+            int maxZoom) {
+        List<List<BikeRentalCluster>> levels = new ArrayList<List<BikeRentalCluster>>(
+                maxZoom + 2);
+        List<MercatorGridIndex<BikeRentalCluster>> indexes
+                = new ArrayList<MercatorGridIndex<BikeRentalCluster>>(maxZoom + 2);
+        for (int i = 0; i <= maxZoom; i++) {
+            levels.add(null);
+            indexes.add(null);
+        }
+
+        // Most detailed level, each station on its own
+        List<Cell> cells = new ArrayList<Cell>(stations.size());
+        List<BikeRentalCluster> allStations = new ArrayList<BikeRentalCluster>(stations.size());
+        Set<String> ids = new HashSet<String>(stations.size() * 2);
+        double cellsPerSide = Math.pow(2, maxZoom) * TILE_SIZE / cellSize;
+        for (BikeRentalStation station : stations) {
+            String id = getId(station);
+            if (!ids.add(id)) {
+                continue;
+            }
+            Cell cell = new Cell(station, id);
+            cell.x = (int) Math.min(MercatorGridIndex.getMercatorX(station.x) * cellsPerSide,
+                    cellsPerSide - 1);
+            cell.y = (int) Math.min(MercatorGridIndex.getMercatorY(station.y) * cellsPerSide,
+                    cellsPerSide - 1);
+            cells.add(cell);
+            allStations.add(cell.toCluster(maxZoom + 1));
+        }
+        levels.add(Collections.unmodifiableList(allStations));
+        indexes.add(buildIndex(allStations, maxZoom + 1, cellSize));
+
+        for (int zoom = maxZoom; zoom >= 0; zoom--) {
+            Map<Long, Cell> merged = new HashMap<Long, Cell>();
+            for (Cell cell : cells) {
+                int x = zoom == maxZoom ? cell.x : cell.x >> 1;
+                int y = zoom == maxZoom ? cell.y : cell.y >> 1;
+                long key = ((long) x << 32) | y;
+                Cell parent = merged.get(key);
+                if (parent == null) {
+                    parent = new Cell(x, y);
+                    merged.put(key, parent);
+                }
+                parent.add(cell);
+            }
+            cells = new ArrayList<Cell>(merged.values());
+            List<BikeRentalCluster> level = new ArrayList<BikeRentalCluster>(cells.size());
+            for (Cell cell : cells) {
+                level.add(cell.toCluster(zoom));
+            }
+            levels.set(zoom, Collections.unmodifiableList(level));
+            indexes.set(zoom, buildIndex(level, zoom, cellSize));
+        }
+
+        return new BikeRentalClusters(maxZoom, levels, indexes);
+    }
+
+    private static MercatorGridIndex<BikeRentalCluster> buildIndex(
+            List<BikeRentalCluster> clusters, int zoom, int cellSize) {
+        MercatorGridIndex<BikeRentalCluster> index = new MercatorGridIndex<BikeRentalCluster>(
+                (1 << zoom) * (TILE_SIZE / cellSize));
+        for (BikeRentalCluster cluster : clusters) {
+            index.add(cluster, cluster.getPosition());
+        }
+        return index;
+    }
+
+    /**
+     * @param zoom zoom level of the map
+     * @return groups to show at that zoom
+     */
+    public List<BikeRentalCluster> getClusters(float zoom) {
+        return levels.get(getLevel(zoom));
+    }
+
+    /**
+     * @param zoom   zoom level of the map
+     * @param bounds region of the map
+     * @return groups to show at that zoom inside the region, and some close to it
+     */
+    public List<BikeRentalCluster> getClusters(float zoom, LatLngBounds bounds) {
+        List<BikeRentalCluster> clusters = new ArrayList<BikeRentalCluster>();
+        indexes.get(getLevel(zoom)).query(bounds, clusters);
+        return clusters;
+    }
+
+    /**
+     * @param zoom zoom level of the map
+     * @return level of the groups to show at that zoom, zooms with the same level show the same
+     * groups
+     */
+    public int getLevel(float zoom) {
+        return Math.max(0, Math.min((int) Math.floor(zoom), maxZoom + 1));
+    }
+
+    /**
+     * @return number of stations
+     */
+    public int size() {
+        return levels.get(maxZoom + 1).size();
+    }
+
+    private static String getId(BikeRentalStation station) {
+        return station.id != null ? station.id : station.name;
+    }
+
+    private static int add(int a, int b) {
+        return (int) Math.min((long) a + b, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stations of a cell of the grid.
+     */
+    private static class Cell {
+
+        int x, y;
+
+        String id;
+
+        String name;
+
+        int stationCount;
+
+        int bikesAvailable;
+
+        int spacesAvailable;
+
+        double sumLatitude, sumLongitude;
+
+        Cell(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        Cell(BikeRentalStation station, String id) {
+            this.id = id;
+            this.name = station.name;
+            this.stationCount = 1;
+            this.bikesAvailable = station.bikesAvailable;
+            this.spacesAvailable = station.spacesAvailable;
+            this.sumLatitude = station.y;
+            this.sumLongitude = station.x;
+        }
+
+        void add(Cell cell) {
+            if (stationCount == 0) {
+                id = cell.id;
+                name = cell.name;
+            }
+            stationCount += cell.stationCount;
+            bikesAvailable = BikeRentalClusters.add(bikesAvailable, cell.bikesAvailable);
+            spacesAvailable = BikeRentalClusters.add(spacesAvailable, cell.spacesAvailable);
+            sumLatitude += cell.sumLatitude;
+            sumLongitude += cell.sumLongitude;
+        }
+
+        BikeRentalCluster toCluster(int zoom) {
+            LatLng position = new LatLng(sumLatitude / stationCount,
+                    sumLongitude / stationCount);
+            if (stationCount == 1) {
+                return new BikeRentalCluster(id, position, name, 1, bikesAvailable,
+                        spacesAvailable);
+            }
+            return new BikeRentalCluster(zoom + "/" + x + "/" + y, position, null,
+                    stationCount, bikesAvailable, spacesAvailable);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+/**
+ * Distance and containment computations on a spherical Earth, working only on primitive
+ * coordinates in degrees so they never allocate.
+ * <p>
+ * Longitudes may be given in any range; differences are always taken the short way around, so
+ * bounds and distances crossing the IDL work as any other.
+ *
+ * @author Vreixo Gonzalez
+ */
+public final class GeoMath {
+
+    public static final double EARTH_RADIUS = 6371008.8; // meters, mean radius
+
+    public static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+    // Keeps longitude margins finite near the poles
+    private static final double MIN_COS_LATITUDE = 0.01;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Great-circle distance, accurate at any distance.
+     *
+     * @return distance between both points, in meters
+     */
+    public static double haversineDistance(double latitude1, double longitude1,
+            double latitude2, double longitude2) {
+        double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+        double sinLongitude = Math.sin(Math.toRadians(longitudeDifference(longitude1,
+                longitude2)) / 2);
+        double a = sinLatitude * sinLatitude + Math.cos(Math.toRadians(latitude1))
+                * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Flat approximation of the distance, cheaper than {@link #haversineDistance} and accurate
+     * to a fraction of a percent for points a few kilometers apart, enough to compare
+     * distances within a city.
+     *
+     * @return distance between both points, in meters
+     */
+    public static double equirectangularDistance(double latitude1, double longitude1,
+            double latitude2, double longitude2) {
+        double x = Math.toRadians(longitudeDifference(longitude1, longitude2))
+                * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        double y = Math.toRadians(latitude2 - latitude1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+    }
+
+    /**
+     * Checks if a point is inside a bounding box grown by a margin. The box crosses the IDL if
+     * its west edge is east of its east edge, and covers all longitudes if it is 360 degrees
+     * wide or more.
+     *
+     * @param margin distance in meters the point can be outside the box
+     * @return true if the point is inside the box or closer to it than the margin
+     */
+    public static boolean isInBoundingBox(double latitude, double longitude,
+            double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+            double margin) {
+        double latitudeMargin = metersToLatitudeDegrees(margin);
+        if (latitude < minLatitude - latitudeMargin || latitude > maxLatitude + latitudeMargin) {
+            return false;
+        }
+        if (maxLongitude - minLongitude >= 360) {
+            // Normalized, the width of the whole world would be 0
+            return true;
+        }
+        double longitudeMargin = metersToLongitudeDegrees(margin, latitude);
+        double width = normalizeLongitude360(maxLongitude - minLongitude);
+        double offset = normalizeLongitude360(longitude - minLongitude);
+        return offset <= width + longitudeMargin || offset >= 360 - longitudeMargin;
+    }
+
+    /**
+     * Finds the point closest to a reference point, using the equirectangular distance.
+     *
+     * @param latitudes  latitudes of the points
+     * @param longitudes longitudes of the points
+     * @param count      number of points to consider, from the beginning of the arrays
+     * @return index of the closest point, or -1 if count is 0
+     */
+    public static int nearest(double latitude, double longitude, double[] latitudes,
+            double[] longitudes, int count) {
+        int nearest = -1;
+        double minDistance = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double distance = equirectangularDistance(latitude, longitude, latitudes[i],
+                    longitudes[i]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    public static double metersToLatitudeDegrees(double meters) {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    /**
+     * @param latitude latitude where the distance is measured
+     * @return degrees of longitude covering the distance along the parallel at that latitude
+     */
+    public static double metersToLongitudeDegrees(double meters, double latitude) {
+        return meters / (METERS_PER_DEGREE
+                * Math.max(Math.cos(Math.toRadians(latitude)), MIN_COS_LATITUDE));
+    }
+
+    /**
+     * @return difference from the first to the second longitude, between -180 and 180
+     */
+    public static double longitudeDifference(double longitude1, double longitude2) {
+        double difference = normalizeLongitude360(longitude2 - longitude1);
+        return difference > 180 ? difference - 360 : difference;
+    }
+
+    private static double normalizeLongitude360(double longitude) {
+        double normalized = longitude % 360;
+        return normalized < 0 ? normalized + 360 : normalized;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+
+/**
+ * Registry of the requests that are currently running, used to coalesce identical requests.
+ * <p>
+ * The first caller for a key runs the request in its own thread. Any caller that arrives with
+ * the same key while it is still running waits for it and receives the same result, instead of
+ * sending a duplicate request to the server. The key is removed as soon as the request ends, so
+ * results are never reused after that; caching is left to the callers.
+ * <p>
+ * Callers that joined a request get the result through {@link #copy(Object)}, override it when
+ * callers may modify the result.
+ * <p>
+ * Requests only overlap if the tasks calling this run at the same time, so they must not be
+ * started with {@code AsyncTask.execute()}, which runs tasks one after another since
+ * Honeycomb; see {@link ParallelTasks}.
+ *
+ * @param <V> type of the result of the requests
+ * @author Vreixo Gonzalez
+ */
+public class InFlightRequests<V> {
+
+    private final String name;
+
+    private final Map<String, FutureTask<V>> inFlight = new HashMap<String, FutureTask<V>>();
+
+    private int coalesced;
+
+    /**
+     * @param name used only to identify the registry in the logs
+     */
+    public InFlightRequests(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs the request, or waits for an identical one that is already running.
+     *
+     * @param key     canonical identifier of the request, usually its URL
+     * @param request request to run if there is none in flight for the key
+     * @return result of the request, or null if it failed or the calling thread was interrupted
+     * while waiting
+     */
+    public V execute(String key, Callable<V> request) {
+        FutureTask<V> task;
+        boolean owner = false;
+
+        synchronized (this) {
+            task = inFlight.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(request);
+                inFlight.put(key, task);
+                owner = true;
+            } else {
+                coalesced++;
+                Log.d(OTPApp.TAG, "Joined in flight " + name + " request, total coalesced: "
+                        + coalesced);
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (inFlight.get(key) == task) {
+                        inFlight.remove(key);
+                    }
+                }
+            }
+        }
+
+        try {
+            V result = task.get();
+            return owner || result == null ? result : copy(result);
+        } catch (InterruptedException e) {
+            Log.d(OTPApp.TAG, "Interrupted while waiting for " + name + " request: " + e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(OTPApp.TAG, "Error in " + name + " request: " + e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Stops sharing the request in flight for the key, so the next caller starts a new one.
+     * <p>
+     * Used when a request is being aborted, callers already waiting for it still get its result.
+     *
+     * @param key canonical identifier of the request
+     */
+    public synchronized void abandon(String key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Returns the result given to a caller that joined a request in flight.
+     *
+     * @param result result of the request, as returned to the caller that ran it
+     * @return the same result, subclasses may return a copy
+     */
+    protected V copy(V result) {
+        return result;
+    }
+
+    public synchronized int getCoalesced() {
+        return coalesced;
+    }
+}
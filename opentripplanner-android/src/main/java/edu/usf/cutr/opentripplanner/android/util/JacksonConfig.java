@@ -19,6 +19,8 @@ package edu.usf.cutr.opentripplanner.android.util;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import org.opentripplanner.api.ws.Response;
 
@@ -54,6 +56,8 @@ public class JacksonConfig {
 
     private static ObjectReader reader = null;
 
+    private static ObjectWriter writer = null;
+
     // For caching objects (ObjectMapper, ObjectReader, and XmlMapper) if
     // desired
     private static Context context = null;
@@ -198,6 +202,20 @@ public class JacksonConfig {
         return reader;
     }
 
+    /**
+     * Constructs a thread-safe instance of a Jackson ObjectWriter that writes
+     * JSON that can be read back with getObjectReaderInstance()
+     *
+     * @return thread-safe ObjectWriter configured for OTP JSON responses
+     */
+    public synchronized static ObjectWriter getObjectWriterInstance() {
+        if (writer == null) {
+            writer = initObjectMapper().writer()
+                    .with(SerializationFeature.WRITE_ENUMS_USING_TO_STRING);
+        }
+        return writer;
+    }
+
     /**
      * Internal method used to init main ObjectMapper for JSON parsing
      *
@@ -17,13 +17,13 @@
 package edu.usf.cutr.opentripplanner.android.util;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.location.Address;
 import android.location.Geocoder;
-import android.location.Location;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -55,50 +55,56 @@ import edu.usf.cutr.opentripplanner.android.util.CustomAddress;
 
 public class LocationUtil {
 
-    // Borrowed from
-    // http://jeffreysambells.com/posts/2010/05/27/decoding-polylines-from-google-maps-direction-api-with-java/
-
     /**
      * Decode a set of GeoPoints from an EncodedPolylineBean object from the OTP
      * server project
+     * <p>
+     * Creates a LatLng for each point, use {@link PolylineBuffer} to decode repeatedly without
+     * allocating.
      *
      * @param encoded string from EncodedPolylineBean
      * @return set of GeoPoints represented by the EncodedPolylineBean string
      */
     public static List<LatLng> decodePoly(String encoded) {
+        PolylineBuffer buffer = new PolylineBuffer(encoded.length() / 2);
+        buffer.decode(encoded);
 
-        List<LatLng> poly = new ArrayList<LatLng>();
-        int index = 0, len = encoded.length();
-        int lat = 0, lng = 0;
-
-        while (index < len) {
-            int b, shift = 0, result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlat = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lat += dlat;
-
-            shift = 0;
-            result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lng += dlng;
-
-            LatLng ll = new LatLng(((double) lat / 1E5),
-                    (((double) lng / 1E5)));
-            poly.add(ll);
+        List<LatLng> poly = new ArrayList<LatLng>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            poly.add(buffer.getLatLng(i));
         }
-
         return poly;
     }
 
+    /**
+     * Enlarges a region of the map by a fraction of its size on each side.
+     *
+     * @param bounds region to enlarge, it can cross the 180 meridian
+     * @param margin fraction of the height and width of the region added on each side
+     * @return the enlarged region, limited to the whole world
+     */
+    public static LatLngBounds expandBounds(LatLngBounds bounds, float margin) {
+        double south = bounds.southwest.latitude;
+        double north = bounds.northeast.latitude;
+        double west = bounds.southwest.longitude;
+        double east = bounds.northeast.longitude;
+        if (west > east) {
+            east += 360;
+        }
+        double latitudeMargin = (north - south) * margin;
+        double longitudeMargin = (east - west) * margin;
+        south = Math.max(south - latitudeMargin, -90);
+        north = Math.min(north + latitudeMargin, 90);
+        if (east - west + 2 * longitudeMargin >= 360) {
+            west = -180;
+            east = 179.999999;
+        } else {
+            west -= longitudeMargin;
+            east += longitudeMargin;
+        }
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+
     /**
      * Compares the current location of the user against a bounding box for a OTP server
      *
@@ -110,42 +116,29 @@ public class LocationUtil {
      */
     public static boolean checkPointInBoundingBox(LatLng location, Server selectedServer,
             int acceptableError) {
-        float[] resultLeft = new float[3];
-        float[] resultRight = new float[3];
-        float[] resultUp = new float[3];
-        float[] resultDown = new float[3];
-        float[] resultHorizontal = new float[3];
-        float[] resultVertical = new float[3];
-
-        double locationLat = location.latitude;
-        double locationLon = location.longitude;
-
-        double leftLat = locationLat;
-        double leftLon = selectedServer.getLowerLeftLongitude();
-        double rightLat = locationLat;
-        double rightLon = selectedServer.getUpperRightLongitude();
-
-        Location.distanceBetween(locationLat, locationLon, leftLat, leftLon, resultLeft);
-        Location.distanceBetween(locationLat, locationLon, rightLat, rightLon, resultRight);
-
-        double upLat = selectedServer.getUpperRightLatitude();
-        double upLon = locationLon;
-        double downLat = selectedServer.getLowerLeftLatitude();
-        double downLon = locationLon;
-
-        Location.distanceBetween(locationLat, locationLon, upLat, upLon, resultUp);
-        Location.distanceBetween(locationLat, locationLon, downLat, downLon, resultDown);
-
-        Location.distanceBetween(locationLat, leftLon, locationLat, rightLon, resultHorizontal);
-        Location.distanceBetween(upLat, locationLon, downLat, locationLon, resultVertical);
-
-        if (resultLeft[0] + resultRight[0] - resultHorizontal[0] > acceptableError) {
-            return false;
-        } else if (resultUp[0] + resultDown[0] - resultVertical[0] > acceptableError) {
-            return false;
-        }
+        return checkPointInBoundingBox(location.latitude, location.longitude, selectedServer,
+                acceptableError);
+    }
 
-        return true;
+    /**
+     * Compares a location against a bounding box for a OTP server
+     *
+     * @param latitude        latitude of the location
+     * @param longitude       longitude of the location
+     * @param selectedServer  OTP server being compared to the location
+     * @param acceptableError the amount of allowed error, in meters, as the sum of the distances
+     *                        from the location to opposite edges minus the size of the box
+     * @return true if the location is within the bounding box of the selectedServer, false if
+     * it is not
+     */
+    public static boolean checkPointInBoundingBox(double latitude, double longitude,
+            Server selectedServer, int acceptableError) {
+        // Outside the box the sum of distances to both edges grows twice as fast as the
+        // distance to the box, so the location can be half the error away from it
+        return GeoMath.isInBoundingBox(latitude, longitude,
+                selectedServer.getLowerLeftLatitude(), selectedServer.getLowerLeftLongitude(),
+                selectedServer.getUpperRightLatitude(), selectedServer.getUpperRightLongitude(),
+                acceptableError / 2.0);
     }
 
     public static ArrayList<CustomAddress> processGeocoding(Context context, Server selectedServer,
@@ -230,13 +223,11 @@ public class LocationUtil {
         boolean resultsCloseEnough = true;
 
         if (geocodingForMarker && latLngSet){
-            float results[] = new float[1];
             resultsCloseEnough = false;
 
             for (CustomAddress addressToCheck : addresses){
-                Location.distanceBetween(latitude, longitude,
-                        addressToCheck.getLatitude(), addressToCheck.getLongitude(), results);
-                if (results[0] < OTPApp.GEOCODING_MAX_ERROR) {
+                if (GeoMath.haversineDistance(latitude, longitude, addressToCheck.getLatitude(),
+                        addressToCheck.getLongitude()) < OTPApp.GEOCODING_MAX_ERROR) {
                     resultsCloseEnough = true;
                     break;
                 }
@@ -261,19 +252,17 @@ public class LocationUtil {
         addresses = filterAddressesBBox(selectedServer, addresses);
 
         if (geocodingForMarker && latLngSet && addresses != null && !addresses.isEmpty()){
-            float results[] = new float[1];
-            float minDistanceToOriginalLatLon = Float.MAX_VALUE;
-            CustomAddress closestAddress = addresses.get(0);
-
-            for (CustomAddress addressToCheck : addresses){
-                Location.distanceBetween(latitude, longitude,
-                        addressToCheck.getLatitude(), addressToCheck.getLongitude(), results);
-                if (results[0] < minDistanceToOriginalLatLon){
-                    closestAddress = addressToCheck;
-                    minDistanceToOriginalLatLon = results[0];
+            Address nearest = null;
+            double minDistance = Double.MAX_VALUE;
+            for (Address candidate : addresses){
+                double distance = GeoMath.equirectangularDistance(latitude, longitude,
+                        candidate.getLatitude(), candidate.getLongitude());
+                if (distance < minDistance){
+                    minDistance = distance;
+                    nearest = candidate;
                 }
             }
-            addressesReturn.add(closestAddress);
+            addressesReturn.add(nearest);
         }
         else{
             addressesReturn.addAll(addresses);
@@ -293,8 +282,8 @@ public class LocationUtil {
         if ((!(addresses == null || addresses.isEmpty())) && selectedServer != null) {
             for (Iterator<CustomAddress> it=addresses.iterator(); it.hasNext();) {
                 CustomAddress address = it.next();
-                if (!LocationUtil.checkPointInBoundingBox(
-                        new LatLng(address.getLatitude(), address.getLongitude()), selectedServer,
+                if (!LocationUtil.checkPointInBoundingBox(address.getLatitude(),
+                        address.getLongitude(), selectedServer,
                         OTPApp.CHECK_BOUNDS_ACCEPTABLE_ERROR)) {
                     it.remove();
                 }
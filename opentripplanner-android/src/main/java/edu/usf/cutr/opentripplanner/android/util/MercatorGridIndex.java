@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Items of the map indexed by the square cell of the Web Mercator projection that contains them,
+ * to find the ones inside a region without going through all of them.
+ * <p>
+ * Only the cells with items are stored. Items are added once, when the index is built out of the
+ * UI thread, and then it is only read.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class MercatorGridIndex<T> {
+
+    private static final double MAX_LATITUDE = 85;
+
+    private final int cellsPerSide;
+
+    private final Map<Long, List<T>> cells = new HashMap<Long, List<T>>();
+
+    /**
+     * @param cellsPerSide number of cells in each side of the square of the whole world
+     */
+    public MercatorGridIndex(int cellsPerSide) {
+        this.cellsPerSide = cellsPerSide;
+    }
+
+    public void add(T item, LatLng position) {
+        long key = getKey(getCell(getMercatorX(position.longitude)),
+                getCell(getMercatorY(position.latitude)));
+        List<T> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<T>(1);
+            cells.put(key, cell);
+        }
+        cell.add(item);
+    }
+
+    /**
+     * Adds to the result the items of the cells that intersect the region, some of them can be
+     * slightly outside.
+     *
+     * @param bounds region to search, it can cross the 180 meridian
+     * @param result list where the items are added
+     */
+    public void query(LatLngBounds bounds, List<T> result) {
+        int minY = getCell(getMercatorY(bounds.northeast.latitude));
+        int maxY = getCell(getMercatorY(bounds.southwest.latitude));
+        int minX = getCell(getMercatorX(bounds.southwest.longitude));
+        int maxX = getCell(getMercatorX(bounds.northeast.longitude));
+        if (bounds.southwest.longitude > bounds.northeast.longitude) {
+            query(minX, cellsPerSide - 1, minY, maxY, result);
+            query(0, maxX, minY, maxY, result);
+        } else {
+            query(minX, maxX, minY, maxY, result);
+        }
+    }
+
+    private void query(int minX, int maxX, int minY, int maxY, List<T> result) {
+        // Zoomed out the region can have more cells than the index, go through the index then
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+            for (Map.Entry<Long, List<T>> entry : cells.entrySet()) {
+                int x = (int) (entry.getKey() >>> 32);
+                int y = (int) (entry.getKey() & 0xffffffffL);
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    result.addAll(entry.getValue());
+                }
+            }
+            return;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                List<T> cell = cells.get(getKey(x, y));
+                if (cell != null) {
+                    result.addAll(cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of cells with items
+     */
+    public int size() {
+        return cells.size();
+    }
+
+    private int getCell(double mercator) {
+        return (int) Math.max(0, Math.min(mercator * cellsPerSide, cellsPerSide - 1));
+    }
+
+    private static long getKey(int x, int y) {
+        return ((long) x << 32) | y;
+    }
+
+    /**
+     * @param longitude longitude, in degrees
+     * @return horizontal position in the Web Mercator projection, from 0 (west) to 1 (east)
+     */
+    public static double getMercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * @param latitude latitude, in degrees
+     * @return vertical position in the Web Mercator projection, from 0 (north) to 1 (south)
+     */
+    public static double getMercatorY(double latitude) {
+        double sinLatitude = Math.sin(Math.toRadians(
+                Math.max(Math.min(latitude, MAX_LATITUDE), -MAX_LATITUDE)));
+        return 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+import edu.usf.cutr.opentripplanner.android.model.Server;
+
+/**
+ * Shared HTTP client used by all the tasks that talk to an OTP server.
+ * <p>
+ * HttpURLConnection keeps a pool of persistent connections per host, but a connection only
+ * goes back to that pool if its response body is fully consumed and the stream is closed.
+ * Calling disconnect() closes the socket instead, so every request had to pay a new TCP (and
+ * TLS) handshake. This class opens connections with the common settings, releases them so they
+ * can be reused, and estimates how many requests could reuse a pooled connection.
+ * <p>
+ * HttpURLConnection does not tell whether a connection came from the pool, so the estimate only
+ * checks if a connection released before is still within {@link OTPApp#HTTP_KEEP_ALIVE_DURATION}
+ * when a new one is opened. The platform may have closed it earlier, or the server may not keep
+ * connections alive at all, so it is an upper bound of the real reuse.
+ * <p>
+ * Responses are requested compressed with gzip or deflate. {@link #getInputStream(
+ * HttpURLConnection)} decompresses them while they are read, so parsers can consume them
+ * directly, and counts the bytes received and the bytes after decompression.
+ * <p>
+ * Resources that are polled can be requested conditionally with
+ * {@link #openConnection(String, boolean)}: the ETag and Last-Modified validators of the last
+ * response are sent back, and if the server answers 304 the last parsed value is still valid.
+ * <p>
+ * There is one instance per server base URL, obtained with {@link #getInstance(String)}.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class OtpHttpClient {
+
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    private static final String ENCODING_GZIP = "gzip";
+
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    private static final Map<String, OtpHttpClient> sInstances
+            = new HashMap<String, OtpHttpClient>();
+
+    private final String baseURL;
+
+    // Release times of connections that were returned to the pool and may still be alive
+    private final LinkedList<Long> idleConnections = new LinkedList<Long>();
+
+    private int estimatedReuses = 0;
+
+    private int estimatedNewConnections = 0;
+
+    private long totalCompressedBytes = 0;
+
+    private long totalUncompressedBytes = 0;
+
+    // Validators and last parsed value of each resource requested conditionally, by url
+    private final Map<String, ConditionalResource> conditionalResources
+            = new HashMap<String, ConditionalResource>();
+
+    private OtpHttpClient(String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    /**
+     * Returns the client shared by all the requests sent to the server with this base URL.
+     *
+     * @param baseURL base URL of the OTP server
+     * @return the shared client for this server
+     */
+    public static synchronized OtpHttpClient getInstance(String baseURL) {
+        OtpHttpClient client = sInstances.get(baseURL);
+        if (client == null) {
+            disableConnectionReuseIfNecessary();
+            client = new OtpHttpClient(baseURL);
+            sInstances.put(baseURL, client);
+        }
+        return client;
+    }
+
+    /**
+     * Returns the client shared by all the requests sent to this server.
+     *
+     * @param server OTP server
+     * @return the shared client for this server
+     */
+    public static OtpHttpClient getInstance(Server server) {
+        return getInstance(server.getBaseURL());
+    }
+
+    /**
+     * Opens a connection to the url with the timeouts used for all OTP requests.
+     * <p>
+     * The connection must be given back with {@link #release(HttpURLConnection, boolean)}
+     * once the response has been read.
+     *
+     * @param url absolute url of the resource
+     * @return a connection ready to be used
+     * @throws IOException if the connection could not be opened
+     */
+    public HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        urlConnection.setRequestProperty("Accept", "application/json");
+        // Setting the header explicitly disables transparent decompression, done by us instead
+        urlConnection.setRequestProperty("Accept-Encoding", ACCEPTED_ENCODINGS);
+        urlConnection.setConnectTimeout(OTPApp.HTTP_CONNECTION_TIMEOUT);
+        urlConnection.setReadTimeout(OTPApp.HTTP_SOCKET_TIMEOUT);
+        estimatePoolUsage();
+        return urlConnection;
+    }
+
+    /**
+     * Opens a connection like {@link #openConnection(String)}, adding the validators of the last
+     * response obtained for this url if the request is conditional.
+     * <p>
+     * If {@link #isNotModified(HttpURLConnection)} is true after the request, the value stored
+     * with {@link #storeValidators(HttpURLConnection, Object)} can be used instead of parsing.
+     *
+     * @param url         absolute url of the resource
+     * @param conditional true to send the validators stored for this url, if any
+     * @return a connection ready to be used
+     * @throws IOException if the connection could not be opened
+     */
+    public HttpURLConnection openConnection(String url, boolean conditional)
+            throws IOException {
+        HttpURLConnection urlConnection = openConnection(url);
+        if (conditional) {
+            ConditionalResource resource;
+            synchronized (this) {
+                resource = conditionalResources.get(url);
+            }
+            if (resource != null) {
+                if (resource.eTag != null) {
+                    urlConnection.setRequestProperty("If-None-Match", resource.eTag);
+                }
+                if (resource.lastModified != 0) {
+                    urlConnection.setIfModifiedSince(resource.lastModified);
+                }
+            }
+        }
+        return urlConnection;
+    }
+
+    /**
+     * @param urlConnection connection opened with {@link #openConnection(String, boolean)}
+     * @return true if the server answered that the resource did not change since the last
+     * response
+     * @throws IOException if the response could not be read
+     */
+    public boolean isNotModified(HttpURLConnection urlConnection) throws IOException {
+        boolean notModified = urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        if (notModified) {
+            Log.d(OTPApp.TAG, "Not modified: " + urlConnection.getURL());
+        }
+        return notModified;
+    }
+
+    /**
+     * Stores the validators of the response, if the server sent any, along with the value parsed
+     * from it, so the next conditional request can be answered with 304.
+     *
+     * @param urlConnection connection with a complete response
+     * @param value         value parsed from the response
+     */
+    public void storeValidators(HttpURLConnection urlConnection, Object value) {
+        String url = urlConnection.getURL().toString();
+        String eTag = urlConnection.getHeaderField("ETag");
+        long lastModified = urlConnection.getLastModified();
+        synchronized (this) {
+            if (eTag != null || lastModified != 0) {
+                conditionalResources.put(url, new ConditionalResource(eTag, lastModified, value));
+            } else {
+                conditionalResources.remove(url);
+            }
+        }
+    }
+
+    /**
+     * @param url absolute url of the resource
+     * @return the value stored with the validators of the last response for this url, null if
+     * there is none
+     */
+    public synchronized Object getLastValue(String url) {
+        ConditionalResource resource = conditionalResources.get(url);
+        return resource != null ? resource.value : null;
+    }
+
+    /**
+     * Returns the body of the response, decompressing it as it is read if the server sent it
+     * compressed.
+     * <p>
+     * Bytes received and decompressed are logged and added to the client totals when the stream
+     * is closed.
+     *
+     * @param urlConnection connection opened with {@link #openConnection(String)}
+     * @return the uncompressed response body
+     * @throws IOException if the response could not be read
+     */
+    public InputStream getInputStream(HttpURLConnection urlConnection) throws IOException {
+        CountingInputStream wireStream = new CountingInputStream(urlConnection.getInputStream());
+        String contentEncoding = urlConnection.getContentEncoding();
+        InputStream decodedStream;
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            decodedStream = new GZIPInputStream(wireStream);
+        } else if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            decodedStream = new InflaterInputStream(wireStream);
+        } else {
+            decodedStream = wireStream;
+        }
+        return new ResponseStream(decodedStream, wireStream, urlConnection.getURL().getPath());
+    }
+
+    /**
+     * Gives back a connection opened with {@link #openConnection(String)}.
+     * <p>
+     * If the request ended correctly the rest of the body is drained and the stream closed, so
+     * the underlying socket returns to the keep-alive pool. Otherwise the socket is closed.
+     *
+     * @param urlConnection connection to release, can be null
+     * @param reusable      false if the request failed and the connection must be discarded
+     */
+    public void release(HttpURLConnection urlConnection, boolean reusable) {
+        if (urlConnection == null) {
+            return;
+        }
+        if (!reusable) {
+            urlConnection.disconnect();
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = urlConnection.getInputStream();
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Discard whatever the parser left unread
+            }
+        } catch (IOException e) {
+            // The parser already closed the stream, the platform has handled the connection
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(OTPApp.TAG, "Error closing connection to " + baseURL + ": " + e);
+                }
+            }
+        }
+        synchronized (this) {
+            idleConnections.addLast(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Counts an estimated reuse if a connection released before is still within the keep-alive
+     * time of the platform pool, an estimated new connection otherwise.
+     */
+    private synchronized void estimatePoolUsage() {
+        long oldestAlive = System.currentTimeMillis() - OTPApp.HTTP_KEEP_ALIVE_DURATION;
+        while (!idleConnections.isEmpty() && idleConnections.getFirst() < oldestAlive) {
+            idleConnections.removeFirst();
+        }
+        if (idleConnections.isEmpty()) {
+            estimatedNewConnections++;
+        } else {
+            idleConnections.removeLast();
+            estimatedReuses++;
+        }
+        Log.d(OTPApp.TAG, "Connection pool for " + baseURL + " - estimated reuses: "
+                + estimatedReuses + ", estimated new connections: " + estimatedNewConnections);
+    }
+
+    private synchronized void countTransferredBytes(String path, long compressedBytes,
+                                                    long uncompressedBytes) {
+        totalCompressedBytes += compressedBytes;
+        totalUncompressedBytes += uncompressedBytes;
+        Log.d(OTPApp.TAG, "Response from " + path + " - received: " + compressedBytes
+                + " bytes, uncompressed: " + uncompressedBytes + " bytes. Total for " + baseURL
+                + " - received: " + totalCompressedBytes + " bytes, uncompressed: "
+                + totalUncompressedBytes + " bytes");
+    }
+
+    /**
+     * @param responseStream stream returned by {@link #getInputStream(HttpURLConnection)}
+     * @return bytes received from the network so far for this response, before decompression
+     */
+    public long getReceivedBytes(InputStream responseStream) {
+        if (responseStream instanceof ResponseStream) {
+            return ((ResponseStream) responseStream).wireStream.getCount();
+        }
+        return 0;
+    }
+
+    public synchronized int getEstimatedReuses() {
+        return estimatedReuses;
+    }
+
+    public synchronized int getEstimatedNewConnections() {
+        return estimatedNewConnections;
+    }
+
+    public synchronized long getTotalCompressedBytes() {
+        return totalCompressedBytes;
+    }
+
+    public synchronized long getTotalUncompressedBytes() {
+        return totalUncompressedBytes;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    /**
+     * Disable HTTP connection reuse which was buggy pre-froyo
+     */
+    private static void disableConnectionReuseIfNecessary() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Uncompressed body of a response, reports the bytes transferred when it is closed.
+     */
+    private class ResponseStream extends CountingInputStream {
+
+        private final CountingInputStream wireStream;
+
+        private final String path;
+
+        private boolean closed = false;
+
+        ResponseStream(InputStream decodedStream, CountingInputStream wireStream, String path) {
+            super(decodedStream);
+            this.wireStream = wireStream;
+            this.path = path;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                countTransferredBytes(path, wireStream.getCount(), getCount());
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Validators of the last response of a resource and the value parsed from it.
+     */
+    private static class ConditionalResource {
+
+        final String eTag;
+
+        final long lastModified;
+
+        final Object value;
+
+        ConditionalResource(String eTag, long lastModified, Object value) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+}
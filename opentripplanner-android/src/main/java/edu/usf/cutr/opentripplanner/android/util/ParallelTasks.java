@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import android.annotation.TargetApi;
+import android.os.AsyncTask;
+import android.os.Build;
+
+/**
+ * Starts AsyncTasks that must not wait for the ones started before them.
+ * <p>
+ * Since Honeycomb {@link AsyncTask#execute(Object[])} runs all the tasks of the app one after
+ * another, so a task started with it waits for any slow request already running.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ParallelTasks {
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * Starts the task in the thread pool of AsyncTask, where it runs at the same time as other
+     * tasks.
+     *
+     * @param task   task to start
+     * @param params parameters of the task
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static <P> void execute(AsyncTask<P, ?, ?> task, P... params) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params);
+        } else {
+            // Before Honeycomb execute() already uses the thread pool
+            task.execute(params);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import org.opentripplanner.api.ws.Response;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.usf.cutr.opentripplanner.android.OTPApp;
+
+/**
+ * Two level cache for trip plan responses.
+ * <p>
+ * Entries are keyed by the plan key built from the request, the plan URL with base URL, API
+ * prefix and the request parameters in canonical order. Plans departing now have no date and
+ * time in their key, see {@code TripRequest.buildPlanKey}, and are looked up with a shorter max
+ * age, {@link OTPApp#PLAN_CACHE_NOW_WINDOW}, measured from the time each entry was stored. A small in-memory LRU sits in front
+ * of an on-disk store under the app cache dir, so a plan requested again after a restart can
+ * still be shown without going to the server.
+ * <p>
+ * Each disk entry starts with the time it was stored, used for the TTL, followed by the JSON of
+ * the response. The file modification time is refreshed on every hit and is used to evict the
+ * least recently used entries once the disk store grows over its size limit.
+ * <p>
+ * Responses are copied when they are stored and returned, as callers change the legs of the plan
+ * with realtime updates.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class PlanResponseCache {
+
+    private static final String CACHE_FOLDER = "plans";
+
+    private static final String CACHE_FILE_EXTENSION = ".json";
+
+    private static PlanResponseCache instance;
+
+    private final File cacheDir;
+
+    private final LruCache<String, CachedResponse> memoryCache;
+
+    private long timeToLive = OTPApp.PLAN_CACHE_TIME_TO_LIVE;
+
+    private long maxDiskSize = OTPApp.PLAN_CACHE_MAX_DISK_SIZE;
+
+    private int hits;
+
+    private int misses;
+
+    private PlanResponseCache(Context context) {
+        cacheDir = new File(context.getCacheDir(), CACHE_FOLDER);
+        memoryCache = new LruCache<String, CachedResponse>(OTPApp.PLAN_CACHE_MAX_MEMORY_ENTRIES);
+    }
+
+    public static synchronized PlanResponseCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new PlanResponseCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached response for the given plan key, looking first in memory and then on
+     * disk.
+     *
+     * @param key plan key, the URL with the parameters in canonical order
+     * @return the cached response or null if there is no fresh entry for the key
+     */
+    public synchronized Response get(String key) {
+        return get(key, timeToLive);
+    }
+
+    /**
+     * Returns the cached response for the given plan key if it was stored less than maxAge ago,
+     * and never after the TTL.
+     *
+     * @param key    plan key, the URL with the parameters in canonical order
+     * @param maxAge max time since the entry was stored, in milliseconds
+     * @return the cached response or null if there is no entry that young for the key
+     */
+    public synchronized Response get(String key, long maxAge) {
+        long now = System.currentTimeMillis();
+        maxAge = Math.min(maxAge, timeToLive);
+
+        CachedResponse cached = memoryCache.get(key);
+        if (cached != null) {
+            if (now - cached.storedAt <= maxAge) {
+                touch(fileForKey(key), now);
+                hits++;
+                Log.d(OTPApp.TAG, "Plan cache memory hit, hits: " + hits + ", misses: " + misses);
+                return copy(cached.response);
+            }
+            memoryCache.remove(key);
+        }
+
+        cached = readFromDisk(key, now, maxAge);
+        if (cached != null) {
+            memoryCache.put(key, cached);
+            hits++;
+            Log.d(OTPApp.TAG, "Plan cache disk hit, hits: " + hits + ", misses: " + misses);
+            return copy(cached.response);
+        }
+
+        misses++;
+        Log.d(OTPApp.TAG, "Plan cache miss, hits: " + hits + ", misses: " + misses);
+        return null;
+    }
+
+    /**
+     * Stores a response in both levels of the cache and evicts the least recently used disk
+     * entries if the disk store is over its size limit.
+     *
+     * @param key      plan key, the URL with the parameters in canonical order
+     * @param response successful response returned by the server
+     */
+    public synchronized void put(String key, Response response) {
+        CachedResponse cached = new CachedResponse(System.currentTimeMillis(), copy(response));
+        memoryCache.put(key, cached);
+        writeToDisk(key, cached);
+        trimDiskCache();
+    }
+
+    /**
+     * Removes all entries from memory and disk.
+     */
+    public synchronized void clear() {
+        memoryCache.evictAll();
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(OTPApp.TAG, "Not possible to delete cached plan " + file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a response, so it can be modified without changing the original.
+     *
+     * @param response response to copy
+     * @return the copy, or the same response if it could not be copied
+     */
+    public static Response copy(Response response) {
+        try {
+            byte[] json = JacksonConfig.getObjectWriterInstance().writeValueAsBytes(response);
+            return JacksonConfig.getObjectReaderInstance().readValue(json);
+        } catch (IOException e) {
+            Log.e(OTPApp.TAG, "Error copying plan, sharing it: " + e);
+            return response;
+        }
+    }
+
+    private CachedResponse readFromDisk(String key, long now, long maxAge) {
+        File file = fileForKey(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            long storedAt = in.readLong();
+            if (now - storedAt > maxAge) {
+                in.close();
+                in = null;
+                if (!file.delete()) {
+                    Log.w(OTPApp.TAG, "Not possible to delete expired plan " + file.getName());
+                }
+                return null;
+            }
+            Response response = JacksonConfig.getObjectReaderInstance().readValue(in);
+            touch(file, now);
+            return new CachedResponse(storedAt, response);
+        } catch (IOException e) {
+            Log.e(OTPApp.TAG, "Error reading cached plan, discarding it: " + e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(OTPApp.TAG, "Error closing cached plan: " + e);
+                }
+            }
+        }
+    }
+
+    private void writeToDisk(String key, CachedResponse cached) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.e(OTPApp.TAG, "Not possible to create plan cache folder");
+            return;
+        }
+
+        File file = fileForKey(key);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeLong(cached.storedAt);
+            JacksonConfig.getObjectWriterInstance().writeValue(out, cached.response);
+        } catch (IOException e) {
+            Log.e(OTPApp.TAG, "Error writing plan to cache: " + e);
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(OTPApp.TAG, "Error closing cached plan: " + e);
+                }
+            }
+        }
+    }
+
+    private void trimDiskCache() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= maxDiskSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (totalSize <= maxDiskSize) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+                Log.d(OTPApp.TAG, "Evicted cached plan " + file.getName());
+            }
+        }
+    }
+
+    private void touch(File file, long now) {
+        if (file.exists()) {
+            file.setLastModified(now);
+        }
+    }
+
+    private File fileForKey(String key) {
+        return new File(cacheDir, hash(key) + CACHE_FILE_EXTENSION);
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes(OTPApp.URL_ENCODING));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public synchronized long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    public synchronized void setMaxDiskSize(long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+        trimDiskCache();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private static class CachedResponse {
+
+        private final long storedAt;
+
+        private final Response response;
+
+        private CachedResponse(long storedAt, Response response) {
+            this.storedAt = storedAt;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable buffer for the points of an encoded polyline.
+ * <p>
+ * Points are decoded into primitive arrays, in the 1E5 fixed point format of the encoding, and
+ * the bounds of the polyline are computed in the same pass. The arrays are kept between calls
+ * to {@link #decode(String)}, so decoding polylines one after another does not allocate once
+ * the buffer is large enough. {@link LatLng} objects are only created when the map needs them.
+ * <p>
+ * Not thread safe, each thread should use its own buffer.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class PolylineBuffer {
+
+    private static final double PRECISION = 1E5;
+
+    private int[] latitudes;
+
+    private int[] longitudes;
+
+    private int size;
+
+    private int minLatitude, maxLatitude, minLongitude, maxLongitude;
+
+    // Work space for the simplification, sized with the coordinates
+    private boolean[] keep;
+
+    private int[] stack;
+
+    public PolylineBuffer() {
+        this(64);
+    }
+
+    /**
+     * @param capacity number of points the buffer can hold before growing
+     */
+    public PolylineBuffer(int capacity) {
+        allocate(capacity);
+    }
+
+    // Borrowed from
+    // http://jeffreysambells.com/posts/2010/05/27/decoding-polylines-from-google-maps-direction-api-with-java/
+
+    /**
+     * Decodes the points of an EncodedPolylineBean string from the OTP server, replacing the
+     * previous content of the buffer.
+     *
+     * @param encoded string from EncodedPolylineBean
+     */
+    public void decode(String encoded) {
+        int len = encoded.length();
+        // Each point takes at least two characters
+        ensureCapacity(len / 2);
+
+        size = 0;
+        minLatitude = Integer.MAX_VALUE;
+        maxLatitude = Integer.MIN_VALUE;
+        minLongitude = Integer.MAX_VALUE;
+        maxLongitude = Integer.MIN_VALUE;
+
+        int index = 0;
+        int lat = 0, lng = 0;
+        while (index < len) {
+            int b, shift = 0, result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            lat += ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
+
+            shift = 0;
+            result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            lng += ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
+
+            latitudes[size] = lat;
+            longitudes[size] = lng;
+            size++;
+            if (lat < minLatitude) {
+                minLatitude = lat;
+            }
+            if (lat > maxLatitude) {
+                maxLatitude = lat;
+            }
+            if (lng < minLongitude) {
+                minLongitude = lng;
+            }
+            if (lng > maxLongitude) {
+                maxLongitude = lng;
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (latitudes.length < capacity) {
+            allocate(capacity);
+        }
+    }
+
+    private void allocate(int capacity) {
+        latitudes = new int[capacity];
+        longitudes = new int[capacity];
+        keep = new boolean[capacity];
+        stack = new int[2 * capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getLatitude(int i) {
+        return latitudes[i] / PRECISION;
+    }
+
+    public double getLongitude(int i) {
+        return longitudes[i] / PRECISION;
+    }
+
+    public LatLng getLatLng(int i) {
+        return new LatLng(getLatitude(i), getLongitude(i));
+    }
+
+    public double getMinLatitude() {
+        return minLatitude / PRECISION;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude / PRECISION;
+    }
+
+    /**
+     * @return south west corner of the bounds of the points, or null if there are none
+     */
+    public LatLng getSouthwest() {
+        return size == 0 ? null
+                : new LatLng(minLatitude / PRECISION, minLongitude / PRECISION);
+    }
+
+    /**
+     * @return north east corner of the bounds of the points, or null if there are none
+     */
+    public LatLng getNortheast() {
+        return size == 0 ? null
+                : new LatLng(maxLatitude / PRECISION, maxLongitude / PRECISION);
+    }
+
+    /**
+     * Simplifies the points with the Douglas-Peucker algorithm, keeping the first and last ones.
+     *
+     * @param tolerance maximum distance in meters from the removed points to the simplified
+     *                  line, 0 to keep all the points
+     * @return the points kept
+     */
+    public List<LatLng> toLatLngs(double tolerance) {
+        if (tolerance <= 0 || size <= 2) {
+            List<LatLng> points = new ArrayList<LatLng>(size);
+            for (int i = 0; i < size; i++) {
+                points.add(getLatLng(i));
+            }
+            return points;
+        }
+
+        // Distances are computed on a local equirectangular projection, in 1E5 degrees
+        double scale = Math.cos(Math.toRadians((getMinLatitude() + getMaxLatitude()) / 2));
+        double toleranceE5 = GeoMath.metersToLatitudeDegrees(tolerance) * PRECISION;
+        double toleranceSquared = toleranceE5 * toleranceE5;
+
+        for (int i = 1; i < size - 1; i++) {
+            keep[i] = false;
+        }
+        keep[0] = true;
+        keep[size - 1] = true;
+        int kept = 2;
+
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double x1 = longitudes[first] * scale;
+            double y1 = latitudes[first];
+            double dx = longitudes[last] * scale - x1;
+            double dy = latitudes[last] - y1;
+            double lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            double maxDistanceSquared = toleranceSquared;
+            for (int i = first + 1; i < last; i++) {
+                double px = longitudes[i] * scale - x1;
+                double py = latitudes[i] - y1;
+                double t = lengthSquared == 0 ? 0
+                        : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double distanceSquared = ex * ex + ey * ey;
+                if (distanceSquared > maxDistanceSquared) {
+                    maxDistanceSquared = distanceSquared;
+                    farthest = i;
+                }
+            }
+
+            if (farthest != -1) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        List<LatLng> points = new ArrayList<LatLng>(kept);
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                points.add(getLatLng(i));
+            }
+        }
+        return points;
+    }
+}
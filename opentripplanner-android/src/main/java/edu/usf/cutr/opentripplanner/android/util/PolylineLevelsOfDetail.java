@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versions of a polyline simplified for ranges of zoom levels of the map.
+ * <p>
+ * Each level is simplified so the removed points are at most about one dp away from the line at
+ * the highest zoom of its range, so the simplification can't be noticed. The last level, used
+ * when the map is zoomed in beyond all the ranges, keeps all the points.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class PolylineLevelsOfDetail {
+
+    // Zoom where each simplified level stops being used
+    private static final float[] LEVEL_MAX_ZOOMS = {10, 13, 16};
+
+    // Size of a dp at the equator at zoom 0, with 256 dp tiles
+    private static final double METERS_PER_DP_AT_ZOOM_0 = 2 * Math.PI * GeoMath.EARTH_RADIUS / 256;
+
+    private static final double TOLERANCE_DP = 1;
+
+    private final List<List<LatLng>> levels;
+
+    /**
+     * @param points decoded polyline, it can be reused after this returns
+     */
+    public PolylineLevelsOfDetail(PolylineBuffer points) {
+        double scale = Math.cos(Math.toRadians((points.getMinLatitude()
+                + points.getMaxLatitude()) / 2));
+
+        List<List<LatLng>> levels = new ArrayList<List<LatLng>>(LEVEL_MAX_ZOOMS.length + 1);
+        List<LatLng> moreDetailed = Collections.unmodifiableList(points.toLatLngs(0));
+        levels.add(moreDetailed);
+        // From the most detailed, so levels with the same points can share the list
+        for (int level = LEVEL_MAX_ZOOMS.length - 1; level >= 0; level--) {
+            double tolerance = TOLERANCE_DP * METERS_PER_DP_AT_ZOOM_0 * scale
+                    / Math.pow(2, LEVEL_MAX_ZOOMS[level]);
+            List<LatLng> levelPoints = points.toLatLngs(tolerance);
+            if (levelPoints.size() != moreDetailed.size()) {
+                moreDetailed = Collections.unmodifiableList(levelPoints);
+            }
+            levels.add(0, moreDetailed);
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * @param zoom zoom level of the map
+     * @return level of detail to use at that zoom
+     */
+    public static int getLevel(float zoom) {
+        for (int level = 0; level < LEVEL_MAX_ZOOMS.length; level++) {
+            if (zoom < LEVEL_MAX_ZOOMS[level]) {
+                return level;
+            }
+        }
+        return LEVEL_MAX_ZOOMS.length;
+    }
+
+    /**
+     * @param level level of detail, from {@link #getLevel(float)}
+     * @return the points of the polyline for that level, which must not be modified
+     */
+    public List<LatLng> getPoints(int level) {
+        return levels.get(level);
+    }
+}
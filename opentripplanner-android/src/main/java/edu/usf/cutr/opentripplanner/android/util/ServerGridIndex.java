@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 University of South Florida
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.usf.cutr.opentripplanner.android.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.usf.cutr.opentripplanner.android.model.Server;
+
+/**
+ * Immutable uniform grid over the bounds of a list of servers, to find the servers that contain
+ * a location without checking every server.
+ * <p>
+ * The bounds are grown by the acceptable error when the index is built, so lookups only compare
+ * coordinates and do not allocate. Each cell keeps the servers that overlap it sorted by area,
+ * smallest first. Servers crossing the IDL have their east edge stored beyond 180 and are
+ * registered in the cells at both sides of it.
+ *
+ * @author Vreixo Gonzalez
+ */
+public class ServerGridIndex {
+
+    private static final double CELL_SIZE = 2; // degrees
+
+    private static final int ROWS = (int) (180 / CELL_SIZE);
+
+    private static final int COLUMNS = (int) (360 / CELL_SIZE);
+
+    private static final int[] EMPTY_CELL = new int[0];
+
+    private final Server[] servers;
+
+    private final double[] minLatitudes, maxLatitudes, minLongitudes, maxLongitudes;
+
+    private final int[][] cells = new int[ROWS * COLUMNS][];
+
+    /**
+     * @param servers servers to index, they must have their bounds set
+     * @param margin  distance in meters a location can be outside the bounds of a server and
+     *                still be considered inside
+     */
+    public ServerGridIndex(List<Server> servers, double margin) {
+        List<Server> sorted = new ArrayList<Server>(servers.size());
+        for (Server server : servers) {
+            if (server.areBoundsSet()) {
+                sorted.add(server);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Server>() {
+            @Override
+            public int compare(Server lhs, Server rhs) {
+                return Double.compare(getArea(lhs), getArea(rhs));
+            }
+        });
+
+        int size = sorted.size();
+        this.servers = sorted.toArray(new Server[size]);
+        minLatitudes = new double[size];
+        maxLatitudes = new double[size];
+        minLongitudes = new double[size];
+        maxLongitudes = new double[size];
+
+        List<List<Integer>> cellLists = new ArrayList<List<Integer>>(cells.length);
+        for (int i = 0; i < cells.length; i++) {
+            cellLists.add(null);
+        }
+
+        for (int i = 0; i < size; i++) {
+            Server server = this.servers[i];
+            double maxAbsLatitude = Math.max(Math.abs(server.getLowerLeftLatitude()),
+                    Math.abs(server.getUpperRightLatitude()));
+            double latitudeMargin = GeoMath.metersToLatitudeDegrees(margin);
+            double longitudeMargin = GeoMath.metersToLongitudeDegrees(margin, maxAbsLatitude);
+
+            minLatitudes[i] = server.getLowerLeftLatitude() - latitudeMargin;
+            maxLatitudes[i] = server.getUpperRightLatitude() + latitudeMargin;
+            minLongitudes[i] = server.getLowerLeftLongitude() - longitudeMargin;
+            maxLongitudes[i] = getMaxLongitude(server) + longitudeMargin;
+
+            int firstRow = getRow(minLatitudes[i]);
+            int lastRow = getRow(maxLatitudes[i]);
+            int firstColumn = (int) Math.floor((minLongitudes[i] + 180) / CELL_SIZE);
+            int lastColumn = (int) Math.floor((maxLongitudes[i] + 180) / CELL_SIZE);
+            if (lastColumn - firstColumn >= COLUMNS) {
+                firstColumn = 0;
+                lastColumn = COLUMNS - 1;
+            }
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int cell = row * COLUMNS + ((column % COLUMNS) + COLUMNS) % COLUMNS;
+                    List<Integer> cellList = cellLists.get(cell);
+                    if (cellList == null) {
+                        cellList = new ArrayList<Integer>();
+                        cellLists.set(cell, cellList);
+                    }
+                    cellList.add(i);
+                }
+            }
+        }
+
+        for (int cell = 0; cell < cells.length; cell++) {
+            List<Integer> cellList = cellLists.get(cell);
+            if (cellList == null) {
+                cells[cell] = EMPTY_CELL;
+            } else {
+                int[] indexes = new int[cellList.size()];
+                for (int j = 0; j < indexes.length; j++) {
+                    indexes[j] = cellList.get(j);
+                }
+                cells[cell] = indexes;
+            }
+        }
+    }
+
+    /**
+     * @param latitude  latitude of the location
+     * @param longitude longitude of the location, between -180 and 180
+     * @return the server with the smallest area that contains the location, or null if there
+     * is none
+     */
+    public Server findSmallest(double latitude, double longitude) {
+        int[] candidates = cells[getCell(latitude, longitude)];
+        for (int i : candidates) {
+            if (contains(i, latitude, longitude)) {
+                return servers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds to the result the servers that contain the location, sorted by area, smallest
+     * first.
+     *
+     * @param latitude  latitude of the location
+     * @param longitude longitude of the location, between -180 and 180
+     * @param result    list where the servers are added
+     */
+    public void findAll(double latitude, double longitude, List<Server> result) {
+        int[] candidates = cells[getCell(latitude, longitude)];
+        for (int i : candidates) {
+            if (contains(i, latitude, longitude)) {
+                result.add(servers[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return servers.length;
+    }
+
+    private boolean contains(int i, double latitude, double longitude) {
+        if (latitude < minLatitudes[i] || latitude > maxLatitudes[i]) {
+            return false;
+        }
+        return (longitude >= minLongitudes[i] && longitude <= maxLongitudes[i])
+                || (longitude + 360 >= minLongitudes[i] && longitude + 360 <= maxLongitudes[i])
+                || (longitude - 360 >= minLongitudes[i] && longitude - 360 <= maxLongitudes[i]);
+    }
+
+    private static int getCell(double latitude, double longitude) {
+        int column = (int) Math.floor((longitude + 180) / CELL_SIZE);
+        column = ((column % COLUMNS) + COLUMNS) % COLUMNS;
+        return getRow(latitude) * COLUMNS + column;
+    }
+
+    private static int getRow(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_SIZE);
+        return Math.min(Math.max(row, 0), ROWS - 1);
+    }
+
+    private static double getMaxLongitude(Server server) {
+        if (server.getLowerLeftLongitude() > server.getUpperRightLongitude()) {
+            return server.getUpperRightLongitude() + 360;
+        }
+        return server.getUpperRightLongitude();
+    }
+
+    /**
+     * @param server server with its bounds set
+     * @return area of the bounds of the server, in squared degrees at the equator
+     */
+    public static double getArea(Server server) {
+        double width = getMaxLongitude(server) - server.getLowerLeftLongitude();
+        double height = server.getUpperRightLatitude() - server.getLowerLeftLatitude();
+        double centerLatitude = (server.getUpperRightLatitude()
+                + server.getLowerLeftLatitude()) / 2;
+        return width * height * Math.cos(Math.toRadians(centerLatitude));
+    }
+}